@@ -0,0 +1,64 @@
+package com.mimacom.metrics.benchmark;
+
+import com.google.gson.Gson;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic actuator <code>/metrics</code> payloads, with the key families and number types of a real service.
+ */
+final class ActuatorPayloads {
+
+    static final ServiceInstance INSTANCE = new DefaultServiceInstance("ORDER-SERVICE", "orders-7f9c4d-x2k4.cluster.local", 8080, false);
+    static final String ENDPOINT = "/admin/metrics";
+
+    private static final String[] STATUSES = {"200", "201", "204", "304", "400", "401", "404", "500", "503"};
+
+    private ActuatorPayloads() {
+    }
+
+    /**
+     * @return the payload as the metrics endpoint returns it
+     */
+    static String json(int keys) {
+        return new Gson().toJson(metrics(keys));
+    }
+
+    /**
+     * @return the payload as deserialized by the RestTemplate into a HashMap
+     */
+    @SuppressWarnings("unchecked")
+    static HashMap<String, Object> map(int keys) {
+        return new Gson().fromJson(json(keys), HashMap.class);
+    }
+
+    private static Map<String, Object> metrics(int keys) {
+        Random random = new Random(keys);
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("mem", 1_046_528 + random.nextInt(100_000));
+        metrics.put("mem.free", random.nextInt(800_000));
+        metrics.put("processors", 8);
+        metrics.put("instance.uptime", 86_400_000L + random.nextInt(1_000_000));
+        metrics.put("uptime", 86_410_000L + random.nextInt(1_000_000));
+        metrics.put("systemload.average", random.nextDouble() * 4);
+        metrics.put("heap.committed", 1_048_576);
+        metrics.put("heap.used", random.nextInt(1_048_576));
+        metrics.put("threads.peak", 64);
+        metrics.put("gc.ps_scavenge.count", random.nextInt(10_000));
+        metrics.put("gc.ps_scavenge.time", random.nextInt(100_000));
+        for (int i = 0; metrics.size() < keys; i++) {
+            String path = "api.v1.resource" + i / STATUSES.length;
+            String status = STATUSES[i % STATUSES.length];
+            metrics.put("counter.status." + status + "." + path, random.nextInt(1_000_000));
+            if (metrics.size() < keys) {
+                metrics.put("gauge.response." + path, random.nextDouble() * 250);
+            }
+        }
+        return metrics;
+    }
+}
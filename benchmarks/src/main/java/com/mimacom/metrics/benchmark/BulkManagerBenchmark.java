@@ -0,0 +1,73 @@
+package com.mimacom.metrics.benchmark;
+
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caching documents and draining them as bulk requests of 20 documents, the default cache size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class BulkManagerBenchmark {
+
+    private static final int DOCUMENTS_PER_REQUEST = 20;
+
+    @Param({"50", "500", "5000"})
+    public int keys;
+
+    private BulkManager bulkManager;
+    private byte[] document;
+    private byte[] actionAndMetadata;
+
+    @Setup
+    public void setUp() {
+        this.bulkManager = new BulkManager(DOCUMENTS_PER_REQUEST, Long.MAX_VALUE, 0, false);
+        this.document = MessageBuilder.buildMessageFromMetrics(ActuatorPayloads.map(this.keys), ActuatorPayloads.ENDPOINT, ActuatorPayloads.INSTANCE,
+                System.currentTimeMillis(), MessageOptions.DEFAULTS).getBytes(StandardCharsets.UTF_8);
+        this.actionAndMetadata = BulkManager.encodeActionAndMetadata("microsvcmetrics-admin-metrics-2017-06-23");
+    }
+
+    @Benchmark
+    public int addInstructionAndDrain() {
+        for (int i = 0; i < DOCUMENTS_PER_REQUEST; i++) {
+            this.bulkManager.addInstruction(this.actionAndMetadata, this.document, 0, this.document.length);
+        }
+        BulkBuffer bulkRequest = this.bulkManager.drainBulkRequest();
+        int size = bulkRequest.size();
+        this.bulkManager.release(bulkRequest);
+        return size;
+    }
+
+    /**
+     * Concurrent scrapers caching into the same manager.
+     */
+    @Benchmark
+    @Threads(4)
+    public void addInstructionContended() {
+        this.bulkManager.addInstruction(this.actionAndMetadata, this.document, 0, this.document.length);
+        if (this.bulkManager.isCacheFull()) {
+            this.bulkManager.release(this.bulkManager.drainBulkRequest());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.mimacom.metrics.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mimacom.metrics.elasticsearch.ElasticsearchNodes;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.forwarder.ElasticsearchCachedForwarder;
+import com.mimacom.metrics.forwarder.ElasticsearchSink;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole forwarding path of one tick from the sink ring on: handing the encoded scrapes to the Elasticsearch sink
+ * and flushing them to a local stub of the <code>_bulk</code> endpoint, which reads the request and acknowledges
+ * every document.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ForwarderBenchmark {
+
+    private static final int DOCUMENTS_PER_FLUSH = 20;
+    private static final byte[] BULK_RESPONSE = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"50", "500", "5000"})
+    public int keys;
+
+    private HttpServer elasticsearch;
+    private RestClient restClient;
+    private ElasticsearchCachedForwarder forwarder;
+    private ElasticsearchSink sink;
+    private BulkBuffer document;
+    private long timestamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.elasticsearch = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.elasticsearch.createContext("/", exchange -> {
+            try (InputStream request = exchange.getRequestBody()) {
+                byte[] discard = new byte[8192];
+                while (request.read(discard) != -1) {
+                    //read the whole bulk request
+                }
+            }
+            exchange.sendResponseHeaders(200, BULK_RESPONSE.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(BULK_RESPONSE);
+            }
+        });
+        this.elasticsearch.start();
+
+        this.restClient = RestClient.builder(new HttpHost("localhost", this.elasticsearch.getAddress().getPort())).build();
+        BulkManager bulkManager = new BulkManager(DOCUMENTS_PER_FLUSH, Long.MAX_VALUE, 0, false);
+        IndexManager indexManager = new IndexManager("microsvcmetrics", "yyyy-MM-dd");
+        ForwarderMetrics forwarderMetrics = new ForwarderMetrics(new MetricRegistry(), bulkManager);
+        this.forwarder = new ElasticsearchCachedForwarder(ElasticsearchNodes.of(this.restClient), bulkManager, indexManager, 3, 500, 30000, 4,
+                Optional.empty(), 5, Optional.empty(), forwarderMetrics);
+        this.sink = new ElasticsearchSink(this.forwarder, bulkManager, 0, 0, "skip");
+        //as encoded by a scrape
+        this.timestamp = System.currentTimeMillis();
+        this.document = new BulkBuffer(1024);
+        this.document.writeUtf8(MessageBuilder.buildMessageFromMetrics(ActuatorPayloads.map(this.keys), ActuatorPayloads.ENDPOINT,
+                ActuatorPayloads.INSTANCE, this.timestamp, MessageOptions.of(indexManager.getSchema())));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.forwarder.close();
+        this.restClient.close();
+        this.elasticsearch.stop(0);
+    }
+
+    @Benchmark
+    public void cacheAndFlush() throws IOException {
+        for (int i = 0; i < DOCUMENTS_PER_FLUSH; i++) {
+            this.sink.write(MetricDocument.of(this.document, ActuatorPayloads.ENDPOINT, this.timestamp));
+        }
+        this.sink.flush();
+    }
+}
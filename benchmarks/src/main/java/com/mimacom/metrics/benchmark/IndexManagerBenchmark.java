@@ -0,0 +1,44 @@
+package com.mimacom.metrics.benchmark;
+
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the index of a document, once per cached document.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class IndexManagerBenchmark {
+
+    private IndexManager indexManager;
+
+    @Setup
+    public void setUp() {
+        this.indexManager = new IndexManager("microsvcmetrics", "yyyy-MM-dd");
+    }
+
+    @Benchmark
+    public String getIndexName() {
+        return this.indexManager.getIndexName(ActuatorPayloads.ENDPOINT);
+    }
+
+    @Benchmark
+    public byte[] getActionAndMetadata() {
+        return this.indexManager.getActionAndMetadata(ActuatorPayloads.ENDPOINT, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,63 @@
+package com.mimacom.metrics.benchmark;
+
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of one scraped payload into a document: the map based builder against the streaming one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class MessageBuilderBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int keys;
+
+    private HashMap<String, Object> metrics;
+    private byte[] payload;
+    private BulkBuffer document;
+
+    @Setup
+    public void setUp() {
+        this.metrics = ActuatorPayloads.map(this.keys);
+        this.payload = ActuatorPayloads.json(this.keys).getBytes(StandardCharsets.UTF_8);
+        this.document = new BulkBuffer(16 * 1024);
+    }
+
+    @Benchmark
+    public String buildMessageFromMetrics() {
+        return MessageBuilder.buildMessageFromMetrics(this.metrics, ActuatorPayloads.ENDPOINT, ActuatorPayloads.INSTANCE, System.currentTimeMillis(), MessageOptions.DEFAULTS);
+    }
+
+    @Benchmark
+    public BulkBuffer writeMessageFromMetrics() throws IOException {
+        this.document.reset();
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(this.payload), StandardCharsets.UTF_8));
+        MessageBuilder.writeMessageFromMetrics(reader, ActuatorPayloads.ENDPOINT, ActuatorPayloads.INSTANCE, System.currentTimeMillis(), this.document, MessageOptions.DEFAULTS);
+        return this.document;
+    }
+}
@@ -1,5 +1,6 @@
 package com.mimacom.metrics;
 
+import com.mimacom.metrics.elasticsearch.ElasticsearchNodes;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
 import org.springframework.beans.factory.annotation.Value;
@@ -7,7 +8,10 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.annotation.Bean;
-import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * @author Enrique Llerena Dominguez
@@ -20,13 +24,16 @@ public class MetricForwarderApplication {
         SpringApplication.run(MetricForwarderApplication.class, args);
     }
 
+    /**
+     * A client per node of <code>elasticsearch.hosts</code>, the single <code>elasticsearch.host</code> by default.
+     */
     @Bean(destroyMethod = "close")
-    public RestClient restClient(@Value("${elasticsearch.host:localhost}") String elasticsearchHost, @Value("${elasticsearch.port:9200}") int port) {
-        return RestClient.builder(new HttpHost(elasticsearchHost, port)).build();
-    }
-
-    @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    public ElasticsearchNodes elasticsearchNodes(@Value("${elasticsearch.hosts:${elasticsearch.host:localhost}:${elasticsearch.port:9200}}") String[] hosts,
+                                                 @Value("${elasticsearch.node.inflight.max:2}") int maxInFlightPerNode,
+                                                 @Value("${elasticsearch.node.backoff.initial:1000}") long initialBackoffMillis,
+                                                 @Value("${elasticsearch.node.backoff.max:60000}") long maxBackoffMillis,
+                                                 @Value("${elasticsearch.sniff.interval:0}") long sniffIntervalMillis) {
+        List<HttpHost> httpHosts = Arrays.stream(hosts).map(ElasticsearchNodes::parseHost).collect(Collectors.toList());
+        return new ElasticsearchNodes(httpHosts, host -> RestClient.builder(host).build(), maxInFlightPerNode, initialBackoffMillis, maxBackoffMillis, sniffIntervalMillis);
     }
 }
@@ -0,0 +1,137 @@
+package com.mimacom.metrics.cluster;
+
+import com.mimacom.metrics.discovery.ServiceTopology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Cluster mode: the forwarder replicas find each other in the registry, as the instances of this application, and
+ * split the instances to scrape among them by rendezvous hashing. Every instance is scraped by the replica scoring
+ * highest for it, so when a replica joins or leaves only the instances it wins or owned move. The replicas need to
+ * register themselves with the registry.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.cluster.enabled", havingValue = "true")
+public class ClusterShards {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterShards.class);
+
+    private final DiscoveryClient discoveryClient;
+    private final ServiceTopology topology;
+    private final String applicationName;
+    private volatile Members members;
+
+    @Autowired
+    public ClusterShards(@SuppressWarnings("SpringJavaAutowiringInspection") DiscoveryClient discoveryClient,
+                         ServiceTopology topology,
+                         @Value("${spring.application.name}") String applicationName) {
+        this.discoveryClient = discoveryClient;
+        this.topology = topology;
+        this.applicationName = applicationName;
+    }
+
+    /**
+     * @return whether this replica scrapes the instance
+     */
+    public boolean owns(ServiceInstance instance) {
+        Members current = members();
+        if (current.self == null) {
+            return true;
+        }
+        String target = instance.getServiceId() + ' ' + instance.getUri();
+        String owner = null;
+        long best = 0;
+        for (String member : current.ids) {
+            long score = score(member, target);
+            if (owner == null || Long.compareUnsigned(score, best) > 0) {
+                owner = member;
+                best = score;
+            }
+        }
+        return current.self.equals(owner);
+    }
+
+    /**
+     * @return the replicas of the cluster, this one included
+     */
+    public int getMembers() {
+        return members().ids.length;
+    }
+
+    private Members members() {
+        ServiceTopology.Snapshot snapshot = this.topology.getSnapshot();
+        Members current = this.members;
+        if (current == null || current.snapshot != snapshot) {
+            current = new Members(snapshot, memberId(this.discoveryClient.getLocalServiceInstance()));
+            if (this.members == null || !current.equals(this.members)) {
+                LOG.info("Forwarder cluster of {} replicas", current.ids.length);
+            }
+            this.members = current;
+        }
+        return current;
+    }
+
+    private static String memberId(ServiceInstance instance) {
+        return instance == null ? null : instance.getHost() + ':' + instance.getPort();
+    }
+
+    /**
+     * Score of the member for the target, the murmur3 finalizer over both hash codes, which are the same on every
+     * replica.
+     */
+    static long score(String member, String target) {
+        long h = ((long) member.hashCode() << 32) | (target.hashCode() & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final class Members {
+        private final ServiceTopology.Snapshot snapshot;
+        private final String self;
+        private final String[] ids;
+
+        Members(ServiceTopology.Snapshot snapshot, String self) {
+            this.snapshot = snapshot;
+            this.self = self;
+            TreeSet<String> ids = new TreeSet<>();
+            for (Map.Entry<String, List<ServiceInstance>> service : snapshot.getServices().entrySet()) {
+                //the registry may report the service id upper case
+                if (service.getKey().equalsIgnoreCase(applicationName)) {
+                    service.getValue().forEach(instance -> ids.add(memberId(instance)));
+                }
+            }
+            if (self != null) {
+                //until this replica shows up in the registry
+                ids.add(self);
+            }
+            this.ids = ids.toArray(new String[ids.size()]);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Members && Arrays.equals(this.ids, ((Members) other).ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.ids);
+        }
+    }
+}
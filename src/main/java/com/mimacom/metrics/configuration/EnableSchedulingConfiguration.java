@@ -2,6 +2,7 @@ package com.mimacom.metrics.configuration;
 
 import com.mimacom.metrics.poller.MetricPollerService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -12,6 +13,7 @@ import org.springframework.scheduling.annotation.Scheduled;
  */
 @Configuration
 @EnableScheduling
+@ConditionalOnProperty(name = "metricpoller.schedule.mode", havingValue = "cron", matchIfMissing = true)
 public class EnableSchedulingConfiguration {
 
     MetricPollerService metricPollerService;
@@ -0,0 +1,208 @@
+package com.mimacom.metrics.delta;
+
+import com.google.gson.stream.JsonWriter;
+import com.mimacom.metrics.discovery.TopologyChangedEvent;
+import com.mimacom.metrics.elasticsearch.util.KeyPatterns;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MetricKeys;
+import com.mimacom.metrics.elasticsearch.util.MetricTransform;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delta mode: remembers the last numeric values scraped from every instance endpoint, so only the metrics which
+ * changed since the previous scrape are forwarded. Counters matching the rate patterns get their per second rate
+ * forwarded as well, as {@code <metric>.rate.value}. A counter going down is taken as a restart of the instance,
+ * its rate is then computed from zero. Every full snapshot interval a scrape is forwarded complete, so the last
+ * value of every metric can be found without going back further.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.delta.enabled", havingValue = "true")
+public class DeltaTracker {
+
+    private static final String RATE_SUFFIX = ".rate";
+
+    private final KeyPatterns rates;
+    private final long fullSnapshotMillis;
+    private final long idleMillis;
+    private final ConcurrentMap<String, TargetState> targets;
+    //the instances of a service scrape the same names, they share a single copy of them
+    private final ConcurrentMap<String, String> names;
+    private volatile long nextEviction;
+
+    @Autowired
+    public DeltaTracker(@Value("${metricpoller.delta.rates:}") String[] rates,
+                        @Value("${metricpoller.delta.fullSnapshot:300000}") long fullSnapshotMillis,
+                        @Value("${metricpoller.delta.idle:900000}") long idleMillis) {
+        this.rates = new KeyPatterns(rates);
+        this.fullSnapshotMillis = fullSnapshotMillis;
+        this.idleMillis = idleMillis;
+        this.targets = new ConcurrentHashMap<>();
+        this.names = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the transform of the scrape, or null while another scrape of the same endpoint is still running, the
+     * scrape is then forwarded complete
+     */
+    public MetricTransform begin(ServiceInstance instance, String endpoint, long timestamp) {
+        evictIdle(timestamp);
+        TargetState state = this.targets.computeIfAbsent(targetKey(instance, endpoint), key -> new TargetState());
+        return state.begin(timestamp) ? state : null;
+    }
+
+    /**
+     * Forgets the values of every endpoint of the instance.
+     */
+    public void evict(ServiceInstance instance) {
+        String prefix = targetKey(instance, "");
+        this.targets.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    @EventListener
+    public void onTopologyChanged(TopologyChangedEvent event) {
+        event.getRemoved().forEach(this::evict);
+    }
+
+    int getTrackedTargets() {
+        return this.targets.size();
+    }
+
+    private void evictIdle(long now) {
+        if (now < this.nextEviction) {
+            return;
+        }
+        this.nextEviction = now + this.idleMillis;
+        this.targets.values().removeIf(state -> state.scraped && now - state.lastTimestamp > this.idleMillis);
+    }
+
+    private static String targetKey(ServiceInstance instance, String endpoint) {
+        return instance.getServiceId() + ' ' + instance.getUri() + endpoint;
+    }
+
+    /**
+     * Last values of a single instance endpoint. The values of a scrape are staged and only become the last values
+     * once the document is complete.
+     */
+    private final class TargetState implements MetricTransform {
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final MetricKeys keys = new MetricKeys(names, 64);
+        private double[] values = new double[64];
+        private double[] staged = new double[64];
+        private int[] stagedScrape = new int[64];
+        private boolean[] withRate = new boolean[64];
+        private int[] rateSlots = new int[16];
+        private double[] rateValues = new double[16];
+        private int rateCount;
+        private int initialized;
+        private int scrape;
+        private long timestamp;
+        private boolean fullSnapshot;
+        private boolean completed;
+        private volatile boolean scraped;
+        private volatile long lastTimestamp;
+        private long lastFullSnapshot;
+
+        boolean begin(long timestamp) {
+            if (!this.busy.compareAndSet(false, true)) {
+                return false;
+            }
+            this.timestamp = timestamp;
+            this.fullSnapshot = !this.scraped || timestamp - this.lastFullSnapshot >= fullSnapshotMillis;
+            this.scrape++;
+            this.keys.rewind();
+            this.rateCount = 0;
+            this.completed = false;
+            return true;
+        }
+
+        @Override
+        public boolean accept(String key, String value) {
+            double current;
+            try {
+                current = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return true;
+            }
+            int slot = slotOf(key);
+            this.staged[slot] = current;
+            this.stagedScrape[slot] = this.scrape;
+
+            double last = this.values[slot];
+            boolean known = !Double.isNaN(last);
+            boolean changed = !known || last != current;
+            if (this.withRate[slot] && known && (changed || this.fullSnapshot)) {
+                double seconds = (this.timestamp - this.lastTimestamp) / 1000.0;
+                if (seconds > 0) {
+                    //a counter going down was reset by a restart, it counted up from zero since
+                    addRate(slot, (current >= last ? current - last : current) / seconds);
+                }
+            }
+            return changed || this.fullSnapshot;
+        }
+
+        @Override
+        public void complete(JsonWriter document) throws IOException {
+            for (int i = 0; i < this.rateCount; i++) {
+                document.name(MessageBuilder.fieldName(this.keys.getKey(this.rateSlots[i]) + RATE_SUFFIX)).value(this.rateValues[i]);
+            }
+            this.completed = true;
+        }
+
+        @Override
+        public void release(boolean commit) {
+            if (this.completed && commit) {
+                for (int slot = 0; slot < this.keys.size(); slot++) {
+                    if (this.stagedScrape[slot] == this.scrape) {
+                        this.values[slot] = this.staged[slot];
+                    }
+                }
+                if (this.fullSnapshot) {
+                    this.lastFullSnapshot = this.timestamp;
+                }
+                this.lastTimestamp = this.timestamp;
+                this.scraped = true;
+            }
+            this.busy.set(false);
+        }
+
+        private int slotOf(String key) {
+            int slot = this.keys.slotOf(key);
+            if (slot == this.values.length) {
+                int capacity = this.keys.capacity();
+                this.values = Arrays.copyOf(this.values, capacity);
+                this.staged = Arrays.copyOf(this.staged, capacity);
+                this.stagedScrape = Arrays.copyOf(this.stagedScrape, capacity);
+                this.withRate = Arrays.copyOf(this.withRate, capacity);
+            }
+            if (slot == this.initialized) {
+                //first time the metric is scraped
+                this.values[slot] = Double.NaN;
+                this.withRate[slot] = rates.matches(key);
+                this.initialized++;
+            }
+            return slot;
+        }
+
+        private void addRate(int slot, double rate) {
+            if (this.rateCount == this.rateSlots.length) {
+                this.rateSlots = Arrays.copyOf(this.rateSlots, this.rateCount * 2);
+                this.rateValues = Arrays.copyOf(this.rateValues, this.rateCount * 2);
+            }
+            this.rateSlots[this.rateCount] = slot;
+            this.rateValues[this.rateCount++] = rate;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.mimacom.metrics.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.event.HeartbeatEvent;
+import org.springframework.cloud.client.discovery.event.HeartbeatMonitor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the services and instances known to the registry. Readers get an immutable snapshot without any locking;
+ * the snapshot is refreshed whenever the heartbeat events of the discovery client carry a new value, and at the
+ * latest once it is older than the refresh interval. Instances appearing or leaving are published as a
+ * {@link TopologyChangedEvent}.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+public class ServiceTopology {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ServiceTopology.class);
+
+    private final DiscoveryClient discoveryClient;
+    private final ApplicationEventPublisher publisher;
+    private final long refreshMillis;
+    private final HeartbeatMonitor heartbeats;
+    private volatile Snapshot snapshot;
+
+    @Autowired
+    public ServiceTopology(@SuppressWarnings("SpringJavaAutowiringInspection") DiscoveryClient discoveryClient,
+                           ApplicationEventPublisher publisher,
+                           @Value("${metricpoller.topology.refresh:30000}") long refreshMillis) {
+        this.discoveryClient = discoveryClient;
+        this.publisher = publisher;
+        this.refreshMillis = refreshMillis;
+        this.heartbeats = new HeartbeatMonitor();
+    }
+
+    /**
+     * @return the current snapshot, the first call and the calls once it is stale read the registry
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = this.snapshot;
+        if (isStale(current)) {
+            current = refreshIfStale();
+        }
+        return current;
+    }
+
+    @EventListener
+    public void onHeartbeat(HeartbeatEvent event) {
+        //a new value does not tell what changed, if anything, the registry is read again to find out
+        if (this.heartbeats.update(event.getValue())) {
+            refresh();
+        }
+    }
+
+    /**
+     * Only the first of the callers which found the snapshot stale reads the registry, the others get its snapshot.
+     */
+    private synchronized Snapshot refreshIfStale() {
+        Snapshot current = this.snapshot;
+        return isStale(current) ? refresh() : current;
+    }
+
+    private boolean isStale(Snapshot snapshot) {
+        return snapshot == null || System.currentTimeMillis() - snapshot.timestamp >= this.refreshMillis;
+    }
+
+    /**
+     * Reads the registry again. If it cannot be read, the previous snapshot is kept and read again next time.
+     */
+    public synchronized Snapshot refresh() {
+        Snapshot previous = this.snapshot;
+        Map<String, List<ServiceInstance>> services = new LinkedHashMap<>();
+        try {
+            for (String service : this.discoveryClient.getServices()) {
+                services.put(service, Collections.unmodifiableList(new ArrayList<>(this.discoveryClient.getInstances(service))));
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Error on reading the service registry, keeping the previous topology", e);
+            return previous != null ? previous : new Snapshot(Collections.emptyMap(), 0);
+        }
+        Snapshot current = new Snapshot(Collections.unmodifiableMap(services), System.currentTimeMillis());
+        this.snapshot = current;
+
+        Map<String, ServiceInstance> before = previous != null ? previous.byKey() : Collections.emptyMap();
+        Map<String, ServiceInstance> after = current.byKey();
+        List<ServiceInstance> added = new ArrayList<>();
+        List<ServiceInstance> removed = new ArrayList<>();
+        after.forEach((key, instance) -> {
+            if (!before.containsKey(key)) {
+                added.add(instance);
+            }
+        });
+        before.forEach((key, instance) -> {
+            if (!after.containsKey(key)) {
+                removed.add(instance);
+            }
+        });
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            LOG.info("Service topology changed: {} instances added, {} removed", added.size(), removed.size());
+            this.publisher.publishEvent(new TopologyChangedEvent(this, added, removed));
+        }
+        return current;
+    }
+
+    /**
+     * Immutable view of the registry at a point in time.
+     */
+    public static final class Snapshot {
+        private final Map<String, List<ServiceInstance>> services;
+        private final long timestamp;
+
+        Snapshot(Map<String, List<ServiceInstance>> services, long timestamp) {
+            this.services = services;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return the instances of every service, by service id in the order of the registry
+         */
+        public Map<String, List<ServiceInstance>> getServices() {
+            return services;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        private Map<String, ServiceInstance> byKey() {
+            Map<String, ServiceInstance> instances = new LinkedHashMap<>();
+            this.services.values().forEach(list -> list.forEach(instance -> instances.put(instance.getServiceId() + ' ' + instance.getUri(), instance)));
+            return instances;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.mimacom.metrics.discovery;
+
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.List;
+
+/**
+ * Published by {@link ServiceTopology} whenever instances appeared in or left the registry, so the state kept per
+ * instance can be evicted.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public class TopologyChangedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<ServiceInstance> added;
+    private final List<ServiceInstance> removed;
+
+    public TopologyChangedEvent(ServiceTopology source, List<ServiceInstance> added, List<ServiceInstance> removed) {
+        super(source);
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public List<ServiceInstance> getAdded() {
+        return added;
+    }
+
+    public List<ServiceInstance> getRemoved() {
+        return removed;
+    }
+}
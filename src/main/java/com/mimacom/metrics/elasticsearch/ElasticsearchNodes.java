@@ -0,0 +1,323 @@
+package com.mimacom.metrics.elasticsearch;
+
+import com.google.gson.stream.JsonReader;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The Elasticsearch nodes the bulk requests are balanced across, each with a client of its own. A request goes to the
+ * healthy node with the fewest requests in flight, the one answering faster on a tie, and a node never has more than
+ * its maximum of requests in flight: the caller waits for a node to become free instead.
+ * <p>
+ * A node failing a request is left out for a backoff doubling with every further failure; once all the nodes are
+ * left out, the one due first is tried anyway. Optionally the nodes of the cluster are sniffed now and then.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public class ElasticsearchNodes implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchNodes.class);
+    private static final String SNIFF_ENDPOINT = "/_nodes/http";
+    //weight of the latest request in the average latency
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final Function<HttpHost, RestClient> clients;
+    private final int maxInFlightPerNode;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ScheduledExecutorService sniffer;
+    private List<Node> nodes;
+
+    /**
+     * @param clients             builds the client of a node
+     * @param sniffIntervalMillis 0 to keep the given hosts
+     */
+    public ElasticsearchNodes(List<HttpHost> hosts, Function<HttpHost, RestClient> clients, int maxInFlightPerNode,
+                              long initialBackoffMillis, long maxBackoffMillis, long sniffIntervalMillis) {
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("No Elasticsearch host configured");
+        }
+        this.clients = clients;
+        this.maxInFlightPerNode = maxInFlightPerNode;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+        this.nodes = new ArrayList<>();
+        for (HttpHost host : hosts) {
+            this.nodes.add(new Node(host, clients.apply(host)));
+        }
+        if (sniffIntervalMillis > 0) {
+            this.sniffer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "elasticsearch-sniffer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.sniffer.scheduleWithFixedDelay(this::sniff, 0, sniffIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.sniffer = null;
+        }
+    }
+
+    /**
+     * @return a single node using the given client, without limit
+     */
+    public static ElasticsearchNodes of(RestClient client) {
+        return new ElasticsearchNodes(Collections.singletonList(new HttpHost("localhost", 9200)), host -> client, Integer.MAX_VALUE, 1000, 60000, 0);
+    }
+
+    /**
+     * Picks the node for the next request, waiting while every node is at its maximum of requests in flight. The
+     * node must be given back with {@link #release} once the request completed.
+     */
+    public synchronized Node acquire() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Node node = select(System.nanoTime(), !interrupted);
+                if (node != null) {
+                    node.inFlight++;
+                    return node;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    //the request is still sent, just not accounted against the limit
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param failed whether the node failed the request, it is then left out for a while
+     */
+    public synchronized void release(Node node, long nanos, boolean failed) {
+        node.inFlight--;
+        if (failed) {
+            node.failures++;
+            long backoff = Math.min(this.maxBackoffNanos, this.initialBackoffNanos << Math.min(node.failures - 1, 30));
+            node.deadUntil = System.nanoTime() + backoff;
+            LOG.warn("Elasticsearch node {} failed {} times in a row, left out for {} ms", node.host, node.failures, TimeUnit.NANOSECONDS.toMillis(backoff));
+        } else {
+            if (node.failures > 0) {
+                LOG.info("Elasticsearch node {} is back", node.host);
+            }
+            node.failures = 0;
+            node.latencyNanos = node.latencyNanos == 0 ? nanos : node.latencyNanos * (1 - LATENCY_WEIGHT) + nanos * LATENCY_WEIGHT;
+        }
+        if (node.retired && node.inFlight == 0) {
+            closeClient(node);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getHealthyNodes() {
+        long now = System.nanoTime();
+        int healthy = 0;
+        for (Node node : this.nodes) {
+            if (node.isHealthy(now)) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public synchronized List<Node> getNodes() {
+        return new ArrayList<>(this.nodes);
+    }
+
+    /**
+     * Replaces the nodes by the given hosts, the statistics of the nodes still there are kept.
+     */
+    public synchronized void update(List<HttpHost> hosts) {
+        if (hosts.isEmpty()) {
+            return;
+        }
+        List<Node> updated = new ArrayList<>();
+        for (HttpHost host : hosts) {
+            Node existing = null;
+            for (Node node : this.nodes) {
+                if (node.host.equals(host)) {
+                    existing = node;
+                }
+            }
+            updated.add(existing != null ? existing : new Node(host, this.clients.apply(host)));
+        }
+        for (Node node : this.nodes) {
+            if (!updated.contains(node)) {
+                LOG.info("Elasticsearch node {} left the cluster", node.host);
+                node.retired = true;
+                if (node.inFlight == 0) {
+                    closeClient(node);
+                }
+            }
+        }
+        this.nodes = updated;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.sniffer != null) {
+            this.sniffer.shutdownNow();
+        }
+        for (Node node : this.nodes) {
+            closeClient(node);
+        }
+    }
+
+    /**
+     * @param limited whether the maximum of requests in flight applies
+     * @return the healthy node with the fewest requests in flight, or else the node due first; null if it is at its
+     * maximum of requests in flight
+     */
+    private Node select(long now, boolean limited) {
+        Node selected = null;
+        Node dueFirst = null;
+        for (Node node : this.nodes) {
+            if (!node.isHealthy(now)) {
+                if (dueFirst == null || node.deadUntil - dueFirst.deadUntil < 0) {
+                    dueFirst = node;
+                }
+                continue;
+            }
+            if (selected == null || node.inFlight < selected.inFlight
+                    || (node.inFlight == selected.inFlight && node.latencyNanos < selected.latencyNanos)) {
+                selected = node;
+            }
+        }
+        if (selected == null) {
+            selected = dueFirst;
+        }
+        return selected != null && (!limited || selected.inFlight < this.maxInFlightPerNode) ? selected : null;
+    }
+
+    private void sniff() {
+        Node node = null;
+        try {
+            node = acquire();
+            long start = System.nanoTime();
+            Response response = node.client.performRequest("GET", SNIFF_ENDPOINT);
+            List<HttpHost> hosts = readHosts(response);
+            release(node, System.nanoTime() - start, false);
+            node = null;
+            update(hosts);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Error sniffing the Elasticsearch nodes: {}", e.getMessage());
+            if (node != null) {
+                release(node, 0, true);
+            }
+        }
+    }
+
+    /**
+     * Reads the HTTP publish addresses from <code>{"nodes": {"id": {"http": {"publish_address": "host:port"}}}}</code>.
+     */
+    private static List<HttpHost> readHosts(Response response) throws IOException {
+        List<HttpHost> hosts = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"nodes".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (!"http".equals(reader.nextName())) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if ("publish_address".equals(reader.nextName())) {
+                                hosts.add(parseHost(reader.nextString()));
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    reader.endObject();
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        }
+        return hosts;
+    }
+
+    /**
+     * @param address <code>host:port</code>, or <code>hostname/ip:port</code> as published by some versions
+     */
+    public static HttpHost parseHost(String address) {
+        address = address.trim();
+        int slash = address.indexOf('/');
+        if (slash >= 0) {
+            address = address.substring(slash + 1);
+        }
+        int colon = address.lastIndexOf(':');
+        return colon > 0
+                ? new HttpHost(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))
+                : new HttpHost(address, 9200);
+    }
+
+    private static void closeClient(Node node) {
+        try {
+            node.client.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing the client of Elasticsearch node {}", node.host, e);
+        }
+    }
+
+    /**
+     * An Elasticsearch node, its statistics are guarded by the {@link ElasticsearchNodes} it belongs to.
+     */
+    public static final class Node {
+        private final HttpHost host;
+        private final RestClient client;
+        private int inFlight;
+        private int failures;
+        private long deadUntil;
+        private double latencyNanos;
+        private boolean retired;
+
+        Node(HttpHost host, RestClient client) {
+            this.host = host;
+            this.client = client;
+        }
+
+        public HttpHost getHost() {
+            return this.host;
+        }
+
+        public RestClient getClient() {
+            return this.client;
+        }
+
+        private boolean isHealthy(long now) {
+            return this.failures == 0 || now - this.deadUntil >= 0;
+        }
+    }
+}
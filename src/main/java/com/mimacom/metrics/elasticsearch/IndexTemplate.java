@@ -0,0 +1,150 @@
+package com.mimacom.metrics.elasticsearch;
+
+import com.google.gson.stream.JsonWriter;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.ResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed schema: installs the index template matching the documents at startup, retrying until Elasticsearch accepts
+ * it. The timestamp is mapped as epoch milliseconds and the metadata as keywords, numbers keep the type they are
+ * written with, other strings are keywords as well, and neither <code>_all</code> nor norms are indexed.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.index.schema", havingValue = "typed")
+public class IndexTemplate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexTemplate.class);
+    private static final String TEMPLATE_ENDPOINT = "/_template/template_";
+    private static final String DOCUMENT_TYPE = "timestamped-metric";
+    private static final String[] KEYWORDS = {"host", "serviceId", "endpoint", "exceptionType", "fingerprint"};
+    private static final String[] TEXTS = {"error", "exceptionMsg"};
+
+    private final ElasticsearchNodes nodes;
+    private final String name;
+    private final String template;
+    private final long retryMillis;
+    private final ScheduledExecutorService installer;
+
+    @Autowired
+    public IndexTemplate(ElasticsearchNodes nodes,
+                         IndexManager indexManager,
+                         @Value("${metricpoller.index.template.shards:1}") int shards,
+                         @Value("${metricpoller.index.template.replicas:1}") int replicas,
+                         @Value("${metricpoller.index.template.refreshInterval:5s}") String refreshInterval,
+                         @Value("${metricpoller.index.template.retry:30000}") long retryMillis) throws IOException {
+        this.nodes = nodes;
+        this.name = indexManager.getIndexName();
+        this.template = build(indexManager.getIndexName(), shards, replicas, refreshInterval);
+        this.retryMillis = retryMillis;
+        this.installer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-template");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getTemplate() {
+        return this.template;
+    }
+
+    @PostConstruct
+    public void start() {
+        this.installer.execute(this::install);
+    }
+
+    @PreDestroy
+    public void close() {
+        this.installer.shutdownNow();
+    }
+
+    private void install() {
+        ElasticsearchNodes.Node node = this.nodes.acquire();
+        long start = System.nanoTime();
+        try {
+            node.getClient().performRequest("PUT", TEMPLATE_ENDPOINT + this.name, Collections.emptyMap(),
+                    new NStringEntity(this.template, ContentType.APPLICATION_JSON));
+            this.nodes.release(node, System.nanoTime() - start, false);
+            LOG.info("Index template template_{} installed", this.name);
+        } catch (IOException | RuntimeException e) {
+            //a response, even an error, means the node is up
+            this.nodes.release(node, System.nanoTime() - start, !(e instanceof ResponseException));
+            LOG.warn("Error installing the index template template_{}, trying again in {} ms: {}", this.name, this.retryMillis, e.getMessage());
+            this.installer.schedule(this::install, this.retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static String build(String indexName, int shards, int replicas, String refreshInterval) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonWriter writer = new JsonWriter(json);
+        writer.beginObject();
+        writer.name("template").value(indexName + "-*");
+        writer.name("settings").beginObject()
+                .name("index").beginObject()
+                .name("number_of_shards").value(shards)
+                .name("number_of_replicas").value(replicas)
+                .name("refresh_interval").value(refreshInterval)
+                .endObject()
+                .endObject();
+
+        writer.name("mappings").beginObject().name(DOCUMENT_TYPE).beginObject();
+        writer.name("_all").beginObject().name("enabled").value(false).endObject();
+        writer.name("dynamic_templates").beginArray();
+        //a long stays a long, and a decimal is not narrowed to a float
+        dynamicTemplate(writer, "integers", "long", "long");
+        dynamicTemplate(writer, "decimals", "double", "double");
+        dynamicTemplate(writer, "strings", "string", "keyword");
+        writer.endArray();
+
+        writer.name("properties").beginObject();
+        writer.name(MessageBuilder.fieldName("timestamp")).beginObject()
+                .name("type").value("date")
+                .name("format").value("epoch_millis")
+                .endObject();
+        writer.name(MessageBuilder.fieldName("port")).beginObject().name("type").value("integer").endObject();
+        for (String keyword : KEYWORDS) {
+            writer.name(MessageBuilder.fieldName(keyword)).beginObject().name("type").value("keyword").endObject();
+        }
+        for (String text : TEXTS) {
+            writer.name(MessageBuilder.fieldName(text)).beginObject().name("type").value("text").name("norms").value(false).endObject();
+        }
+        //only ever read, never searched
+        writer.name(MessageBuilder.fieldName("exceptionStacktrace")).beginObject().name("type").value("text").name("index").value(false).endObject();
+        writer.endObject();
+
+        writer.endObject().endObject();
+        writer.endObject();
+        writer.flush();
+        return json.toString();
+    }
+
+    private static void dynamicTemplate(JsonWriter writer, String name, String jsonType, String type) throws IOException {
+        writer.beginObject().name(name).beginObject()
+                .name("match_mapping_type").value(jsonType)
+                .name("mapping").beginObject()
+                .name("type").value(type);
+        if ("keyword".equals(type)) {
+            writer.name("ignore_above").value(1024);
+        }
+        writer.endObject().endObject().endObject();
+    }
+}
@@ -0,0 +1,225 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Growable byte buffer holding the NDJSON instructions of one bulk request. Buffers are pooled by the
+ * {@link BulkManager} and reused from one bulk request to the next, so the instructions are encoded once
+ * and handed to the REST client without building intermediate Strings.
+ */
+public class BulkBuffer {
+
+    private byte[] bytes;
+    private int size;
+    private int documents;
+    private int[] documentOffsets = new int[64];
+    private final Writer writer = new Utf8Writer();
+
+    public BulkBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * A writer appending the UTF-8 encoding of everything written to this buffer.
+     */
+    public Writer asWriter() {
+        return writer;
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDocuments() {
+        return documents;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Marks the current position as the start of the next document, i.e. of its action & metadata line.
+     */
+    public void startDocument() {
+        markDocument(this.size);
+    }
+
+    private void markDocument(int offset) {
+        if (this.documents == this.documentOffsets.length) {
+            this.documentOffsets = Arrays.copyOf(this.documentOffsets, this.documents * 2);
+        }
+        this.documentOffsets[this.documents++] = offset;
+    }
+
+    public int getDocumentStart(int document) {
+        return this.documentOffsets[document];
+    }
+
+    public int getDocumentEnd(int document) {
+        return document + 1 < this.documents ? this.documentOffsets[document + 1] : this.size;
+    }
+
+    /**
+     * Copies one document, action & metadata line included, from another buffer.
+     */
+    public void writeDocument(BulkBuffer source, int document) {
+        int start = source.getDocumentStart(document);
+        startDocument();
+        write(source.array(), start, source.getDocumentEnd(document) - start);
+    }
+
+    public void reset() {
+        this.size = 0;
+        this.documents = 0;
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        this.bytes[this.size++] = (byte) b;
+    }
+
+    public void write(byte[] src) {
+        write(src, 0, src.length);
+    }
+
+    public void write(byte[] src, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(src, offset, this.bytes, this.size, length);
+        this.size += length;
+    }
+
+    /**
+     * Encodes the characters as UTF-8 straight into the buffer.
+     */
+    public void writeUtf8(CharSequence chars) {
+        writeUtf8(chars, 0, chars.length());
+    }
+
+    public void writeUtf8(CharSequence chars, int offset, int length) {
+        //worst case is 3 bytes per char, surrogate pairs take 4 bytes for 2 chars
+        ensureCapacity(length * 3);
+        byte[] buffer = this.bytes;
+        int position = this.size;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                //unpaired surrogate, same replacement as String.getBytes
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.size = position;
+    }
+
+    /**
+     * Copies all the documents of another buffer.
+     */
+    public void writeAll(BulkBuffer source) {
+        int shift = this.size;
+        write(source.array(), 0, source.size());
+        for (int document = 0; document < source.getDocuments(); document++) {
+            markDocument(source.getDocumentStart(document) + shift);
+        }
+    }
+
+    /**
+     * Appends complete bulk instructions, e.g. read back from the spool, and marks where their documents start:
+     * every document is made of an action & metadata line followed by the source line.
+     */
+    public void writeInstructions(ByteBuffer source, int length) {
+        ensureCapacity(length);
+        int start = this.size;
+        source.get(this.bytes, start, length);
+        this.size += length;
+
+        int lines = 0;
+        int lineStart = start;
+        for (int i = start; i < this.size; i++) {
+            if (this.bytes[i] == '\n') {
+                if (lines++ % 2 == 0) {
+                    markDocument(lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Appends the output of the deflater until it is finished, its whole input has to be set and finished already.
+     */
+    public void writeDeflated(Deflater deflater) {
+        while (!deflater.finished()) {
+            ensureCapacity(4096);
+            this.size += deflater.deflate(this.bytes, this.size, this.bytes.length - this.size);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = this.size + extra;
+        if (required > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(required, this.bytes.length * 2));
+        }
+    }
+
+    private class Utf8Writer extends Writer {
+
+        @Override
+        public void write(int c) {
+            if (c < 0x80) {
+                BulkBuffer.this.write(c);
+            } else {
+                writeUtf8(String.valueOf((char) c));
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            writeUtf8(str, off, len);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            writeUtf8(CharBuffer.wrap(cbuf), off, len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            writeUtf8(csq);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+            //nothing is buffered
+        }
+
+        @Override
+        public void close() {
+            //the buffer stays usable
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.message.BasicHeader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip encoding of the bulk requests. The instructions are deflated straight from the buffer they were cached in
+ * into another pooled buffer, the deflaters are pooled as well. The uncompressed buffer is kept, as the documents
+ * rejected by Elasticsearch are copied from it to be sent again.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.bulk.compression.enabled", havingValue = "true")
+public class BulkCompressor {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final Header CONTENT_ENCODING = new BasicHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+
+    private final int level;
+    private final Queue<Deflater> deflaters;
+
+    @Autowired
+    public BulkCompressor(@Value("${metricpoller.bulk.compression.level:6}") int level) {
+        this.level = level;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Writes the gzip encoding of the bulk request into the target buffer.
+     */
+    public void compress(BulkBuffer bulkRequest, BulkBuffer target) {
+        Deflater deflater = this.deflaters.poll();
+        if (deflater == null) {
+            //raw deflate, the gzip header and trailer are written here
+            deflater = new Deflater(this.level, true);
+        }
+        try {
+            target.write(GZIP_HEADER);
+            deflater.setInput(bulkRequest.array(), 0, bulkRequest.size());
+            deflater.finish();
+            target.writeDeflated(deflater);
+
+            CRC32 crc = new CRC32();
+            crc.update(bulkRequest.array(), 0, bulkRequest.size());
+            writeIntLE(target, (int) crc.getValue());
+            writeIntLE(target, bulkRequest.size());
+        } finally {
+            deflater.reset();
+            this.deflaters.offer(deflater);
+        }
+    }
+
+    public Header getHeader() {
+        return CONTENT_ENCODING;
+    }
+
+    @PreDestroy
+    public void close() {
+        for (Deflater deflater = this.deflaters.poll(); deflater != null; deflater = this.deflaters.poll()) {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(BulkBuffer target, int value) {
+        target.write(value);
+        target.write(value >>> 8);
+        target.write(value >>> 16);
+        target.write(value >>> 24);
+    }
+}
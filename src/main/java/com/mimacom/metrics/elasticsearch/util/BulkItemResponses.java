@@ -0,0 +1,145 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Outcome of the single items of a bulk request, read from the <code>_bulk</code> response. Only the failed items
+ * are kept, by their position in the request.
+ */
+public class BulkItemResponses {
+
+    private static final BulkItemResponses SUCCESS = new BulkItemResponses(new int[0], new int[0], 0, null);
+
+    private final int[] failedItems;
+    private final int[] failedStatuses;
+    private final int failures;
+    private final String firstFailure;
+
+    private BulkItemResponses(int[] failedItems, int[] failedStatuses, int failures, String firstFailure) {
+        this.failedItems = failedItems;
+        this.failedStatuses = failedStatuses;
+        this.failures = failures;
+        this.firstFailure = firstFailure;
+    }
+
+    public boolean hasFailures() {
+        return failures > 0;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return position in the bulk request of the n-th failed item
+     */
+    public int getFailedItem(int failure) {
+        return failedItems[failure];
+    }
+
+    public int getFailedStatus(int failure) {
+        return failedStatuses[failure];
+    }
+
+    /**
+     * @return type and reason of the first failed item, to be logged
+     */
+    public String getFirstFailure() {
+        return firstFailure;
+    }
+
+    /**
+     * Reads the response in a streaming way. The items are only looked at when the response reports errors, which
+     * Elasticsearch writes before them.
+     */
+    public static BulkItemResponses parse(InputStream response) throws IOException {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(response, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("errors".equals(name)) {
+                    if (!reader.nextBoolean()) {
+                        return SUCCESS;
+                    }
+                } else if ("items".equals(name)) {
+                    return parseItems(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return SUCCESS;
+        }
+    }
+
+    private static BulkItemResponses parseItems(JsonReader reader) throws IOException {
+        int[] failedItems = new int[16];
+        int[] failedStatuses = new int[16];
+        int failures = 0;
+        String firstFailure = null;
+
+        reader.beginArray();
+        for (int item = 0; reader.hasNext(); item++) {
+            int status = 0;
+            String error = null;
+            //{ "index" : { "_index" : ..., "status" : 429, "error" : { "type" : ..., "reason" : ... } } }
+            reader.beginObject();
+            reader.nextName();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("status".equals(name)) {
+                    status = reader.nextInt();
+                } else if ("error".equals(name) && firstFailure == null) {
+                    error = readError(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            reader.endObject();
+
+            if (status >= 300) {
+                if (failures == failedItems.length) {
+                    failedItems = Arrays.copyOf(failedItems, failures * 2);
+                    failedStatuses = Arrays.copyOf(failedStatuses, failures * 2);
+                }
+                failedItems[failures] = item;
+                failedStatuses[failures] = status;
+                failures++;
+                if (firstFailure == null) {
+                    firstFailure = "status " + status + (error != null ? ", " + error : "");
+                }
+            }
+        }
+        reader.endArray();
+        return new BulkItemResponses(failedItems, failedStatuses, failures, firstFailure);
+    }
+
+    private static String readError(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return reader.nextString();
+        }
+        String type = null;
+        String reason = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                type = reader.nextString();
+            } else if ("reason".equals(name)) {
+                reason = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type + ": " + reason;
+    }
+}
@@ -6,28 +6,53 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-import java.util.Vector;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by _domine3 on 23.06.2017.
+ * <p>
+ * The instructions are cached in generations. Producers append to the stripe of the active generation picked by
+ * their thread, so concurrent scrapers rarely meet on the same monitor. Draining swaps in a fresh generation
+ * atomically, waits for the producers still writing into the old one and hands its content over, so no instruction
+ * added during a flush is lost.
  */
 @Component
 public class BulkManager {
 
     private final int documentsToCache;
+    private final long bytesToCache;
+    private final long lingerNanos;
     private final boolean autoflush;
-    private static final String BULK_ACTION_AND_METADATA = "{ \"index\" : { \"_index\" : \"%s\", \"_type\" : \"timestamped-metric\"} }";
-    public static final String BULK_ENDPOINT = "_bulk";
-    private final List<String> bulkInstructions;
+    private static final String BULK_ACTION_AND_METADATA = "{ \"index\" : { \"_index\" : \"%s\", \"_type\" : \"timestamped-metric\"} }\n";
+    public static final String BULK_ENDPOINT = "/_bulk";
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+    private static final int INITIAL_STRIPE_CAPACITY = 16 * 1024;
+    private final Queue<BulkBuffer> bufferPool;
+    private final int maxPooledBuffers;
+    private final int stripes;
+    private final AtomicReference<Generation> bulkInstructions;
     private BasicHeader header;
 
     @Autowired
     public BulkManager(@Value("${metricpoller.bulk.cache.documents:10}") int documentsToCache,
+            @Value("${metricpoller.bulk.cache.bytes:5242880}") long bytesToCache,
+            @Value("${metricpoller.bulk.cache.linger:0}") long lingerMillis,
             @Value("${metricpoller.bulk.cache.autoflush:false}") Boolean autoflush) {
         this.documentsToCache = documentsToCache;
+        this.bytesToCache = bytesToCache;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
         this.autoflush = autoflush;
-        this.bulkInstructions = new Vector<>();
+        this.bufferPool = new ConcurrentLinkedQueue<>();
+        //power of two, so the stripe of a thread is found with a mask
+        this.stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+        this.maxPooledBuffers = 2 * this.stripes + 8;
+        this.bulkInstructions = new AtomicReference<>(newGeneration());
         this.header = new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/x-ndjson");
     }
 
@@ -35,6 +60,20 @@ public class BulkManager {
         return documentsToCache;
     }
 
+    /**
+     * @return maximum size in bytes of a bulk request
+     */
+    public long getBytesToCache() {
+        return bytesToCache;
+    }
+
+    /**
+     * @return maximum time in ms a document waits in the cache, 0 if it can wait until the cache is full
+     */
+    public long getLinger() {
+        return TimeUnit.NANOSECONDS.toMillis(lingerNanos);
+    }
+
     public boolean isAutoflush() {
         return autoflush;
     }
@@ -48,27 +87,150 @@ public class BulkManager {
     }
 
 
-    public void addInstruction(String mapping, String jsonDocument){
-        this.bulkInstructions.add(String.format(BULK_ACTION_AND_METADATA, mapping));
-        this.bulkInstructions.add(jsonDocument);
+    /**
+     * @param actionAndMetadata the encoded line as built by {@link #encodeActionAndMetadata(String)}
+     * @param jsonDocument      the UTF-8 encoded document
+     */
+    public void addInstruction(byte[] actionAndMetadata, byte[] jsonDocument, int offset, int length){
+        Generation generation = enter();
+        try {
+            BulkBuffer stripe = generation.stripeOf(Thread.currentThread());
+            int bytes;
+            synchronized (stripe) {
+                int start = stripe.size();
+                stripe.startDocument();
+                stripe.write(actionAndMetadata);
+                stripe.write(jsonDocument, offset, length);
+                stripe.write('\n');
+                bytes = stripe.size() - start;
+            }
+            generation.documentAdded(bytes);
+        } finally {
+            generation.writers.decrementAndGet();
+        }
+    }
+
+    public int getCachedDocuments() {
+        return this.bulkInstructions.get().documents.get();
+    }
+
+    public long getCachedBytes() {
+        return this.bulkInstructions.get().bytes.get();
     }
 
+    /**
+     * @return whether any of the limits is reached: documents, bytes, or time the oldest document has been waiting
+     */
     public boolean isCacheFull(){
-        //we are storing 2 instructions per document: one for the action & metadata, and the other one for the entity representing the document
-        return this.bulkInstructions.size() >= this.getDocumentsToCache() * 2;
+        Generation generation = this.bulkInstructions.get();
+        if (generation.documents.get() >= this.documentsToCache || generation.bytes.get() >= this.bytesToCache) {
+            return true;
+        }
+        long firstDocument = generation.firstDocument.get();
+        return this.lingerNanos > 0 && firstDocument != 0 && System.nanoTime() - firstDocument >= this.lingerNanos;
+    }
+
+    /**
+     * Splits the bulk request at document boundaries into the next request of at most {@link #getBytesToCache()}
+     * bytes, a single document bigger than that goes alone.
+     *
+     * @return the first document after the split request, so requests are split by calling this method until it
+     * returns the number of documents of the bulk request
+     */
+    public int split(BulkBuffer bulkRequest, int fromDocument, BulkBuffer splitRequest) {
+        int document = fromDocument;
+        do {
+            splitRequest.writeDocument(bulkRequest, document++);
+        } while (document < bulkRequest.getDocuments()
+                && splitRequest.size() + bulkRequest.getDocumentEnd(document) - bulkRequest.getDocumentStart(document) <= this.bytesToCache);
+        return document;
+    }
+
+    /**
+     * Hands over the cached instructions as one bulk request body and starts caching into an empty generation.
+     * The returned buffer must be given back with {@link #release(BulkBuffer)} once the request is done.
+     */
+    public BulkBuffer drainBulkRequest() {
+        Generation full = this.bulkInstructions.getAndSet(newGeneration());
+        //producers which entered the old generation before the swap are about to finish their instruction
+        while (full.writers.get() > 0) {
+            Thread.yield();
+        }
+
+        BulkBuffer bulkRequest = acquire();
+        for (BulkBuffer stripe : full.stripes) {
+            bulkRequest.writeAll(stripe);
+            release(stripe);
+        }
+        return bulkRequest;
     }
 
-    public String getBulkRequest() {
-        StringBuilder bulkRequest = new StringBuilder();
-        for (String instruction : this.bulkInstructions) {
-            bulkRequest.append(instruction);
-            bulkRequest.append('\n');
+    public void release(BulkBuffer buffer) {
+        buffer.reset();
+        if (this.bufferPool.size() < this.maxPooledBuffers) {
+            this.bufferPool.offer(buffer);
         }
-        return bulkRequest.toString();
     }
 
-    public void clearCachedInstructions() {
-        this.bulkInstructions.clear();
+    public BulkBuffer acquire() {
+        BulkBuffer buffer = this.bufferPool.poll();
+        return buffer != null ? buffer : new BulkBuffer(INITIAL_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Registers the calling producer as writer of the active generation. The registration is only valid if the
+     * generation was not swapped meanwhile, otherwise the drain could miss it.
+     */
+    private Generation enter() {
+        while (true) {
+            Generation generation = this.bulkInstructions.get();
+            generation.writers.incrementAndGet();
+            if (this.bulkInstructions.get() == generation) {
+                return generation;
+            }
+            generation.writers.decrementAndGet();
+        }
+    }
+
+    private Generation newGeneration() {
+        BulkBuffer[] buffers = new BulkBuffer[this.stripes];
+        for (int i = 0; i < buffers.length; i++) {
+            BulkBuffer buffer = this.bufferPool.poll();
+            buffers[i] = buffer != null ? buffer : new BulkBuffer(INITIAL_STRIPE_CAPACITY);
+        }
+        return new Generation(buffers);
+    }
+
+    /**
+     * @return the action & metadata line, new line included, indexing a document into the index. Encoded once per
+     * index by the {@link IndexManager}
+     */
+    public static byte[] encodeActionAndMetadata(String index) {
+        return String.format(BULK_ACTION_AND_METADATA, index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Generation {
+        private final BulkBuffer[] stripes;
+        private final AtomicInteger writers = new AtomicInteger();
+        private final AtomicInteger documents = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong firstDocument = new AtomicLong();
+
+        Generation(BulkBuffer[] stripes) {
+            this.stripes = stripes;
+        }
+
+        void documentAdded(int documentBytes) {
+            if (this.documents.getAndIncrement() == 0) {
+                //nanoTime of the first document, never 0 so it can tell an empty generation
+                this.firstDocument.compareAndSet(0, System.nanoTime() | 1);
+            }
+            this.bytes.addAndGet(documentBytes);
+        }
+
+        BulkBuffer stripeOf(Thread thread) {
+            return this.stripes[(int) thread.getId() & (this.stripes.length - 1)];
+        }
     }
 
 }
@@ -0,0 +1,46 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * How the documents are encoded, set by <code>metricpoller.index.schema</code>.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public enum DocumentSchema {
+
+    /**
+     * The timestamp as a <code>yyyyMMdd'T'HHmmss.SSSZ</code> string, every field dynamically mapped.
+     */
+    FORMATTED {
+        @Override
+        public void writeTimestamp(JsonWriter writer, long timestamp) throws IOException {
+            writer.value(TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timestamp)));
+        }
+    },
+
+    /**
+     * The timestamp in epoch milliseconds, mapped by the index template the forwarder installs.
+     */
+    TYPED {
+        @Override
+        public void writeTimestamp(JsonWriter writer, long timestamp) throws IOException {
+            writer.value(timestamp);
+        }
+    };
+
+    public static final String TIMESTAMP_PATTERN = "yyyyMMdd'T'HHmmss.SSSZ";
+    //thread safe, unlike SimpleDateFormat, so it is shared by every document
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern(TIMESTAMP_PATTERN).withZone(ZoneId.systemDefault());
+
+    public abstract void writeTimestamp(JsonWriter writer, long timestamp) throws IOException;
+
+    public static DocumentSchema of(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
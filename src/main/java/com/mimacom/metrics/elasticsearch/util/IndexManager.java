@@ -4,26 +4,86 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.DayOfWeek;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by _domine3 on 23.06.2017.
+ * <p>
+ * Routes every document to the index of the period its timestamp falls into. The period is the finest unit of the
+ * date format, e.g. a day for <code>yyyy-MM-dd</code>. The index name and its encoded action & metadata line are
+ * computed once per endpoint and period, and the partitions of past periods are evicted as time goes by.
  */
 @Component
 public class IndexManager {
-    private static String INDEX_NAME;
-    private static String INDEX_NAME_DATE_FORMAT;
+    //partitions kept per endpoint besides the latest one, for documents arriving late
+    private static final int RETAINED_PERIODS = 2;
+    private final String indexName;
+    private final DateTimeFormatter indexNameDateFormat;
+    private final ChronoUnit period;
+    private final ZoneId zone;
+    private final Map<String, EndpointPartitions> partitions;
+    private final DocumentSchema schema;
+
+    public IndexManager(String indexName, String indexNameDateFormat) {
+        this(indexName, indexNameDateFormat, DocumentSchema.FORMATTED.name());
+    }
 
     @Autowired
     public IndexManager(@Value("${metricpoller.index.name:microsvcmetrics}") String indexName,
-                        @Value("${metricpoller.index.dateFormat:yyyy-MM-dd}") String indexNameDateFormat) {
-        INDEX_NAME = indexName;
-        INDEX_NAME_DATE_FORMAT = indexNameDateFormat;
+                        @Value("${metricpoller.index.dateFormat:yyyy-MM-dd}") String indexNameDateFormat,
+                        @Value("${metricpoller.index.schema:formatted}") String schema) {
+        this.indexName = indexName;
+        this.schema = DocumentSchema.of(schema);
+        this.indexNameDateFormat = DateTimeFormatter.ofPattern(indexNameDateFormat);
+        this.period = finestUnit(indexNameDateFormat);
+        this.zone = ZoneId.systemDefault();
+        this.partitions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the prefix shared by every index
+     */
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public DocumentSchema getSchema() {
+        return schema;
     }
 
     public String getIndexName(String endpoint) {
-        return String.format("%s-%s-%s", INDEX_NAME, cleanEndpointName(endpoint), getCurrentLocalDateTimeStamp());
+        return getIndexName(endpoint, System.currentTimeMillis());
+    }
+
+    public String getIndexName(String endpoint, long timestamp) {
+        return getPartition(endpoint, timestamp).indexName;
+    }
+
+    /**
+     * @return the encoded bulk action & metadata line indexing into the index of the endpoint for the timestamp
+     */
+    public byte[] getActionAndMetadata(String endpoint, long timestamp) {
+        return getPartition(endpoint, timestamp).actionAndMetadata;
+    }
+
+    private Partition getPartition(String endpoint, long timestamp) {
+        EndpointPartitions endpointPartitions = this.partitions.get(endpoint);
+        if (endpointPartitions == null) {
+            endpointPartitions = this.partitions.computeIfAbsent(endpoint, EndpointPartitions::new);
+        }
+        Partition latest = endpointPartitions.latest;
+        if (latest != null && latest.contains(timestamp)) {
+            return latest;
+        }
+        return endpointPartitions.getPartition(timestamp);
     }
 
     private String cleanEndpointName(String endpoint) {
@@ -31,7 +91,113 @@ public class IndexManager {
         return result.replace("/", "-");
     }
 
-    private String getCurrentLocalDateTimeStamp() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern(INDEX_NAME_DATE_FORMAT));
+    private LocalDateTime startOfPeriod(LocalDateTime dateTime) {
+        switch (this.period) {
+            case YEARS:
+                return dateTime.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
+            case MONTHS:
+                return dateTime.with(TemporalAdjusters.firstDayOfMonth()).truncatedTo(ChronoUnit.DAYS);
+            case WEEKS:
+                return dateTime.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).truncatedTo(ChronoUnit.DAYS);
+            default:
+                return dateTime.truncatedTo(this.period);
+        }
+    }
+
+    /**
+     * Finest time unit of a date pattern, letters between quotes are literals.
+     */
+    private static ChronoUnit finestUnit(String pattern) {
+        ChronoUnit unit = ChronoUnit.YEARS;
+        boolean quoted = false;
+        for (char letter : pattern.toCharArray()) {
+            if (letter == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                ChronoUnit letterUnit = unitOf(letter);
+                if (letterUnit != null && letterUnit.compareTo(unit) < 0) {
+                    unit = letterUnit;
+                }
+            }
+        }
+        return unit;
+    }
+
+    private static ChronoUnit unitOf(char letter) {
+        switch (letter) {
+            case 's':
+                return ChronoUnit.SECONDS;
+            case 'm':
+                return ChronoUnit.MINUTES;
+            case 'H': case 'k': case 'K': case 'h':
+                return ChronoUnit.HOURS;
+            case 'd': case 'D': case 'E': case 'e': case 'c': case 'F':
+                return ChronoUnit.DAYS;
+            case 'w': case 'W': case 'Y':
+                return ChronoUnit.WEEKS;
+            case 'M': case 'L': case 'Q': case 'q':
+                return ChronoUnit.MONTHS;
+            default:
+                return null;
+        }
+    }
+
+    private class EndpointPartitions {
+        private final String endpointName;
+        private final Map<Long, Partition> byStart = new ConcurrentHashMap<>();
+        private volatile Partition latest;
+
+        EndpointPartitions(String endpoint) {
+            this.endpointName = cleanEndpointName(endpoint);
+        }
+
+        Partition getPartition(long timestamp) {
+            LocalDateTime start = startOfPeriod(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone));
+            long startMillis = start.atZone(zone).toInstant().toEpochMilli();
+            Partition partition = this.byStart.get(startMillis);
+            if (partition == null) {
+                partition = this.byStart.computeIfAbsent(startMillis, key -> newPartition(start, key));
+                evict(partition);
+            }
+            Partition latest = this.latest;
+            if (latest == null || partition.start > latest.start) {
+                //rolling over, documents of the new period go through the fast path from now on
+                this.latest = partition;
+            }
+            return partition;
+        }
+
+        private Partition newPartition(LocalDateTime start, long startMillis) {
+            long endMillis = start.plus(1, period).atZone(zone).toInstant().toEpochMilli();
+            String name = String.format("%s-%s-%s", indexName, this.endpointName, start.format(indexNameDateFormat));
+            return new Partition(startMillis, endMillis, name);
+        }
+
+        private void evict(Partition created) {
+            if (this.byStart.size() <= RETAINED_PERIODS + 1) {
+                return;
+            }
+            long newest = Math.max(created.start, this.latest != null ? this.latest.start : created.start);
+            long retainedPeriod = created.end - created.start;
+            this.byStart.keySet().removeIf(start -> start < newest - RETAINED_PERIODS * retainedPeriod);
+        }
+    }
+
+    private static class Partition {
+        private final long start;
+        private final long end;
+        private final String indexName;
+        private final byte[] actionAndMetadata;
+
+        Partition(long start, long end, String indexName) {
+            this.start = start;
+            this.end = end;
+            this.indexName = indexName;
+            this.actionAndMetadata = BulkManager.encodeActionAndMetadata(indexName);
+        }
+
+        boolean contains(long timestamp) {
+            return timestamp >= this.start && timestamp < this.end;
+        }
     }
 }
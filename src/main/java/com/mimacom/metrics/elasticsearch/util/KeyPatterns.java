@@ -0,0 +1,50 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Metric name patterns from the configuration, '*' matches any sequence of characters and everything else is
+ * literal, e.g. {@code counter.status.*} or {@code gc.*.count}.
+ */
+public class KeyPatterns {
+
+    private final Pattern[] patterns;
+
+    public KeyPatterns(String... globs) {
+        this.patterns = Arrays.stream(globs)
+                .map(String::trim)
+                .filter(glob -> !glob.isEmpty())
+                .map(KeyPatterns::compile)
+                .toArray(Pattern[]::new);
+    }
+
+    public boolean isEmpty() {
+        return this.patterns.length == 0;
+    }
+
+    public boolean matches(String key) {
+        for (Pattern pattern : this.patterns) {
+            if (pattern.matcher(key).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int star = glob.indexOf('*'); star >= 0; star = glob.indexOf('*', start)) {
+            if (star > start) {
+                regex.append(Pattern.quote(glob.substring(start, star)));
+            }
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -1,11 +1,15 @@
 package com.mimacom.metrics.elasticsearch.util;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.springframework.cloud.client.ServiceInstance;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * Created by _domine3 on 23.06.2017.
@@ -13,29 +17,206 @@ import java.util.HashMap;
 public class MessageBuilder {
 
     private static final String SUFFIX = ".value";
-    private static final String DEFAULT_DATE_FORMAT = "yyyyMMdd'T'HHmmss.SSSZ";
-    private static final String META_KEY_TIMESTAMP = "timestamp" + SUFFIX;
-    private static final String META_KEY_HOST = "host" + SUFFIX;
-    private static final String META_KEY_PORT = "port" + SUFFIX;
-    private static final String META_KEY_SVC_ID = "serviceId" + SUFFIX;
-    private static final String META_KEY_ENDPOINT_ID = "endpoint" + SUFFIX;
-    private final static Gson gson = new Gson();
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_HOST = "host";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_SVC_ID = "serviceId";
+    private static final String KEY_ENDPOINT_ID = "endpoint";
+    private static final String META_KEY_TIMESTAMP = KEY_TIMESTAMP + SUFFIX;
+    private static final String META_KEY_HOST = KEY_HOST + SUFFIX;
+    private static final String META_KEY_PORT = KEY_PORT + SUFFIX;
+    private static final String META_KEY_SVC_ID = KEY_SVC_ID + SUFFIX;
+    private static final String META_KEY_ENDPOINT_ID = KEY_ENDPOINT_ID + SUFFIX;
 
+    /**
+     * Numbers are written with their own type, a long stays a long.
+     */
+    public static String buildMessageFromMetrics(HashMap<String, Object> metrics, String endpoint, ServiceInstance instance, long timestamp, MessageOptions options) {
+        MetricTransform transform = options.getTransform();
+        Predicate<String> keys = options.getKeys();
+        StringWriter json = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(json);
+            writer.beginObject();
+            for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+                String key = metric.getKey();
+                Object value = metric.getValue();
+                //same as Gson for maps: nulls are left out, and the metadata wins over a metric of the same name
+                if (value == null || isMetadataKey(key) || (keys != null && !keys.test(key))) {
+                    continue;
+                }
+                if (transform != null && value instanceof Number) {
+                    if (transform.accept(key, value.toString())) {
+                        writer.name(fieldName(key)).value((Number) value);
+                    }
+                    continue;
+                }
+                writer.name(fieldName(key));
+                writeValue(writer, value);
+            }
+            if (transform != null) {
+                transform.complete(writer);
+            }
+            //Adding the metadata not present on the /metrics reponse
+            writeMetadata(writer, endpoint, instance, timestamp, options.getSchema());
+            writer.endObject();
+        } catch (IOException e) {
+            //not thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Streaming counterpart of {@link #buildMessageFromMetrics}: reads the endpoint response token by token and
+     * writes the document straight into the buffer. Numbers are copied as they were received and nested values are
+     * copied untouched, only the top level keys get the suffix.
+     *
+     * @return the number of metrics written
+     */
+    public static int writeMessageFromMetrics(JsonReader metrics, String endpoint, ServiceInstance instance, long timestamp, BulkBuffer document, MessageOptions options) throws IOException {
+        MetricTransform transform = options.getTransform();
+        Predicate<String> keys = options.getKeys();
+        JsonWriter writer = new JsonWriter(document.asWriter());
+        writer.beginObject();
+        int written = 0;
 
-    public static String buildMessageFromMetrics(HashMap<String, Object> metrics, String endpoint, ServiceInstance instance) {
-        HashMap<String, Object> jsonKeyValueMap = new HashMap<>();
+        metrics.beginObject();
+        while (metrics.hasNext()) {
+            String key = metrics.nextName();
+            JsonToken token = metrics.peek();
+            //same as Gson for maps: nulls are left out, and the metadata wins over a metric of the same name
+            if (token == JsonToken.NULL || isMetadataKey(key) || (keys != null && !keys.test(key))) {
+                metrics.skipValue();
+                continue;
+            }
+            if (transform != null && token == JsonToken.NUMBER) {
+                String value = metrics.nextString();
+                if (transform.accept(key, value)) {
+                    writer.name(fieldName(key)).jsonValue(value);
+                    written++;
+                }
+                continue;
+            }
+            writer.name(fieldName(key));
+            copyValue(metrics, writer);
+            written++;
+        }
+        metrics.endObject();
+        if (transform != null) {
+            transform.complete(writer);
+        }
 
-        metrics.forEach((key, value) -> jsonKeyValueMap.put(key + SUFFIX, value));
+        writeMetadata(writer, endpoint, instance, timestamp, options.getSchema());
+
+        writer.endObject();
+        writer.flush();
+        return written;
+    }
 
-        //Adding the metadata not present on the /metrics reponse
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(DEFAULT_DATE_FORMAT);
-        jsonKeyValueMap.put(META_KEY_TIMESTAMP, simpleDateFormat.format(new Date()));
-        jsonKeyValueMap.put(META_KEY_ENDPOINT_ID, endpoint);
-        jsonKeyValueMap.put(META_KEY_HOST, instance.getHost());
-        jsonKeyValueMap.put(META_KEY_PORT, instance.getPort());
-        jsonKeyValueMap.put(META_KEY_SVC_ID, instance.getServiceId());
+    /**
+     * Writes the metadata not present on the /metrics response into the open document.
+     */
+    public static void writeMetadata(JsonWriter writer, String endpoint, ServiceInstance instance, long timestamp, DocumentSchema schema) throws IOException {
+        writer.name(META_KEY_TIMESTAMP);
+        schema.writeTimestamp(writer, timestamp);
+        writer.name(META_KEY_ENDPOINT_ID).value(endpoint);
+        writer.name(META_KEY_HOST).value(instance.getHost());
+        writer.name(META_KEY_PORT).value(instance.getPort());
+        writer.name(META_KEY_SVC_ID).value(instance.getServiceId());
+    }
+
+    /**
+     * @return the name of the document field holding the metric
+     */
+    public static String fieldName(String key) {
+        return key + SUFFIX;
+    }
+
+    /**
+     * Inverse of {@link #fieldName(String)}.
+     *
+     * @return the key of the metric held by the document field, null for the metadata and any other field
+     */
+    public static String metricKey(String fieldName) {
+        if (!fieldName.endsWith(SUFFIX)) {
+            return null;
+        }
+        String key = fieldName.substring(0, fieldName.length() - SUFFIX.length());
+        return isMetadataKey(key) ? null : key;
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value instanceof Map) {
+            writer.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                writer.name(String.valueOf(entry.getKey()));
+                writeValue(writer, entry.getValue());
+            }
+            writer.endObject();
+        } else if (value instanceof Iterable) {
+            writer.beginArray();
+            for (Object element : (Iterable<?>) value) {
+                writeValue(writer, element);
+            }
+            writer.endArray();
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case NUMBER:
+                //the literal is kept as is, no boxing nor double conversion
+                writer.jsonValue(reader.nextString());
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek() + " at " + reader.getPath());
+        }
+    }
 
-        return gson.toJson(jsonKeyValueMap);
+    private static boolean isMetadataKey(String key) {
+        return KEY_TIMESTAMP.equals(key) || KEY_HOST.equals(key) || KEY_PORT.equals(key)
+                || KEY_SVC_ID.equals(key) || KEY_ENDPOINT_ID.equals(key);
     }
 
 }
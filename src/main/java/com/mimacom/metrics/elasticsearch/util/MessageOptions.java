@@ -0,0 +1,50 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import java.util.function.Predicate;
+
+/**
+ * How the {@link MessageBuilder} encodes a document: the schema of the metadata, an optional transform of the
+ * numeric metrics and an optional predicate on the metric keys.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public final class MessageOptions {
+
+    /**
+     * The formatted schema, every metric written as received.
+     */
+    public static final MessageOptions DEFAULTS = new MessageOptions(DocumentSchema.FORMATTED, null, null);
+
+    private final DocumentSchema schema;
+    private final MetricTransform transform;
+    private final Predicate<String> keys;
+
+    /**
+     * @param transform optional, decides which numeric metrics are written and adds fields of its own
+     * @param keys      optional, the values of the keys it rejects are skipped without being read
+     */
+    public MessageOptions(DocumentSchema schema, MetricTransform transform, Predicate<String> keys) {
+        this.schema = schema;
+        this.transform = transform;
+        this.keys = keys;
+    }
+
+    /**
+     * @return the options of the schema, every metric written as received
+     */
+    public static MessageOptions of(DocumentSchema schema) {
+        return schema == DocumentSchema.FORMATTED ? DEFAULTS : new MessageOptions(schema, null, null);
+    }
+
+    public DocumentSchema getSchema() {
+        return this.schema;
+    }
+
+    public MetricTransform getTransform() {
+        return this.transform;
+    }
+
+    public Predicate<String> getKeys() {
+        return this.keys;
+    }
+}
@@ -0,0 +1,82 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Slots of the metrics scraped from a single instance endpoint, for state kept in parallel primitive arrays. The
+ * metrics are numbered in the order they are scraped, which hardly changes between scrapes, so a metric is usually
+ * found at the slot following the previous one without any lookup. Not thread safe.
+ */
+public class MetricKeys {
+
+    private final ConcurrentMap<String, String> names;
+    private String[] keys;
+    private Map<String, Integer> slots;
+    private int size;
+    private int cursor;
+
+    /**
+     * @param names shared by the instances of all services, so every metric name is kept only once
+     */
+    public MetricKeys(ConcurrentMap<String, String> names, int capacity) {
+        this.names = names;
+        this.keys = new String[capacity];
+    }
+
+    /**
+     * Starts a new scrape, the slots are expected in the same order again.
+     */
+    public void rewind() {
+        this.cursor = 0;
+    }
+
+    /**
+     * @return the slot of the metric, new metrics get the next free slot
+     */
+    public int slotOf(String key) {
+        int slot = this.cursor;
+        if (slot >= this.size || !this.keys[slot].equals(key)) {
+            slot = lookup(key);
+        }
+        this.cursor = slot + 1;
+        return slot;
+    }
+
+    public String getKey(int slot) {
+        return this.keys[slot];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the length the parallel arrays need to hold every slot
+     */
+    public int capacity() {
+        return this.keys.length;
+    }
+
+    private int lookup(String key) {
+        if (this.slots == null) {
+            this.slots = new HashMap<>(this.size * 2);
+            for (int slot = 0; slot < this.size; slot++) {
+                this.slots.put(this.keys[slot], slot);
+            }
+        }
+        Integer slot = this.slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+        }
+        int added = this.size++;
+        this.keys[added] = this.names.computeIfAbsent(key, name -> name);
+        this.slots.put(this.keys[added], added);
+        return added;
+    }
+}
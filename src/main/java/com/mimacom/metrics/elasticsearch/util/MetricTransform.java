@@ -0,0 +1,62 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Hook into {@link MessageBuilder#writeMessageFromMetrics} deciding which numeric metrics of a scrape go into the
+ * document, and adding fields of its own. A transform serves a single scrape and is released afterwards, whether
+ * the document was completed or not.
+ */
+public interface MetricTransform {
+
+    /**
+     * @param key   the metric name as scraped
+     * @param value the number literal as scraped
+     * @return whether the metric is written into the document
+     */
+    boolean accept(String key, String value);
+
+    /**
+     * Called once all the scraped metrics are read, before the metadata is written.
+     */
+    void complete(JsonWriter document) throws IOException;
+
+    /**
+     * Called after every scrape. The work of a transform which was not completed, or not committed, is discarded.
+     *
+     * @param commit whether the outcome of the scrape is forwarded, a scrape timed out meanwhile is not
+     */
+    void release(boolean commit);
+
+    /**
+     * @return a transform handing the metrics accepted by the first one over to the second one, either may be null
+     */
+    static MetricTransform chain(MetricTransform first, MetricTransform second) {
+        if (first == null || second == null) {
+            return first != null ? first : second;
+        }
+        return new MetricTransform() {
+            @Override
+            public boolean accept(String key, String value) {
+                return first.accept(key, value) && second.accept(key, value);
+            }
+
+            @Override
+            public void complete(JsonWriter document) throws IOException {
+                first.complete(document);
+                second.complete(document);
+            }
+
+            @Override
+            public void release(boolean commit) {
+                try {
+                    first.release(commit);
+                } finally {
+                    second.release(commit);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,193 @@
+package com.mimacom.metrics.filter;
+
+import com.codahale.metrics.Counter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The include and exclude patterns applying to one target, compiled into a single trie: the patterns share their
+ * common prefixes and every key is matched against all of them in one pass over its characters, a '*' node looping
+ * on any character. A key is kept when it matches an include pattern, or there are none, and no exclude pattern.
+ * Every dropped key is counted on the pattern dropping it.
+ * <p>
+ * Once built, the trie is frozen into arrays and every thread matches in state arrays of its own, shared by all the
+ * filters of the {@link MetricFilters}, so testing a key allocates nothing.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+class KeyFilter implements Predicate<String> {
+
+    private final Node root;
+    private final boolean includes;
+    private final Counter unmatched;
+    private final int size;
+    //the states of the keys being matched, one set per thread
+    private final ThreadLocal<States> states;
+
+    KeyFilter(List<MetricFilters.Rule> rules, Counter unmatched, ThreadLocal<States> states) {
+        this.root = new Node(0);
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(this.root);
+        boolean includes = false;
+        for (MetricFilters.Rule rule : rules) {
+            Node node = this.root;
+            for (int i = 0; i < rule.getPattern().length(); i++) {
+                char c = rule.getPattern().charAt(i);
+                if (c == '*') {
+                    if (node.star == null) {
+                        node.star = newNode(nodes);
+                        node.star.wildcard = true;
+                    }
+                    node = node.star;
+                } else {
+                    Node child = node.building.get(c);
+                    if (child == null) {
+                        child = newNode(nodes);
+                        node.building.put(c, child);
+                    }
+                    node = child;
+                }
+            }
+            if (rule.isExclude()) {
+                if (node.exclude == null) {
+                    node.exclude = rule;
+                }
+            } else {
+                node.include = true;
+                includes = true;
+            }
+        }
+        nodes.forEach(Node::freeze);
+        this.includes = includes;
+        this.unmatched = unmatched;
+        this.size = nodes.size();
+        this.states = states;
+    }
+
+    @Override
+    public boolean test(String key) {
+        States scratch = this.states.get().ensure(this.size);
+        Node[] states = scratch.current;
+        Node[] next = scratch.next;
+        scratch.generation++;
+        int count = scratch.add(states, 0, this.root);
+        for (int i = 0; i < key.length() && count > 0; i++) {
+            char c = key.charAt(i);
+            scratch.generation++;
+            int nextCount = 0;
+            for (int s = 0; s < count; s++) {
+                Node state = states[s];
+                if (state.wildcard) {
+                    nextCount = scratch.add(next, nextCount, state);
+                }
+                Node child = state.child(c);
+                if (child != null) {
+                    nextCount = scratch.add(next, nextCount, child);
+                }
+            }
+            Node[] swap = states;
+            states = next;
+            next = swap;
+            count = nextCount;
+        }
+
+        boolean included = !this.includes;
+        for (int s = 0; s < count; s++) {
+            Node state = states[s];
+            if (state.exclude != null) {
+                state.exclude.getDropped().inc();
+                return false;
+            }
+            included |= state.include;
+        }
+        if (!included) {
+            this.unmatched.inc();
+        }
+        return included;
+    }
+
+    private static Node newNode(List<Node> nodes) {
+        Node node = new Node(nodes.size());
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * The states of one thread, reused for every key of every filter and grown to the largest trie. A node is in the
+     * set of a step when stamped with its generation.
+     */
+    static final class States {
+        private Node[] current = new Node[0];
+        private Node[] next = new Node[0];
+        private long[] stamps = new long[0];
+        private long generation;
+
+        /**
+         * @return these states, with room for the nodes of a trie
+         */
+        States ensure(int nodes) {
+            if (this.stamps.length < nodes) {
+                this.current = new Node[nodes];
+                this.next = new Node[nodes];
+                this.stamps = new long[nodes];
+            }
+            return this;
+        }
+
+        /**
+         * Adds the state and the '*' following it, which may match no character at all.
+         *
+         * @return the number of states in the set
+         */
+        int add(Node[] states, int count, Node node) {
+            for (; node != null; node = node.star) {
+                if (this.stamps[node.id] == this.generation) {
+                    return count;
+                }
+                this.stamps[node.id] = this.generation;
+                states[count++] = node;
+            }
+            return count;
+        }
+    }
+
+    private static final class Node {
+        private final int id;
+        private Map<Character, Node> building = new HashMap<>(4);
+        //the children of the frozen trie, a handful at most so they are scanned
+        private char[] labels;
+        private Node[] children;
+        private Node star;
+        private boolean wildcard;
+        private boolean include;
+        private MetricFilters.Rule exclude;
+
+        Node(int id) {
+            this.id = id;
+        }
+
+        void freeze() {
+            this.labels = new char[this.building.size()];
+            this.children = new Node[this.building.size()];
+            int i = 0;
+            for (Map.Entry<Character, Node> child : this.building.entrySet()) {
+                this.labels[i] = child.getKey();
+                this.children[i++] = child.getValue();
+            }
+            this.building = null;
+        }
+
+        Node child(char c) {
+            for (int i = 0; i < this.labels.length; i++) {
+                if (this.labels[i] == c) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.mimacom.metrics.filter;
+
+import com.codahale.metrics.Counter;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * The metric keys forwarded per service and endpoint, from <code>metricpoller.filters</code>. Every filter is a key
+ * pattern, '*' matching any sequence of characters, excluding the keys it matches when prefixed with '!'. A filter
+ * applies to every target unless scoped with <code>service:pattern</code> or <code>service:endpoint:pattern</code>,
+ * where service and endpoint may be '*'. The endpoint starts with '/', anything else after the service is the
+ * pattern, so a pattern holding ':' is written with a scope, e.g. <code>*:jmx:type=Memory</code>.
+ * <p>
+ * The filters applying to a target are compiled into a {@link KeyFilter} the first time it is scraped; the keys it
+ * drops are skipped while the response is parsed.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+public class MetricFilters {
+
+    private static final String ANY = "*";
+    //no filter applies to the target
+    private static final Predicate<String> ALL = key -> true;
+
+    private final List<Rule> rules;
+    private final Counter unmatched;
+    private final ConcurrentMap<String, Predicate<String>> targets;
+    //shared by every filter, so a thread holds a single set of states however many targets it scrapes
+    private final ThreadLocal<KeyFilter.States> states;
+
+    @Autowired
+    public MetricFilters(@Value("${metricpoller.filters:}") String[] filters, ForwarderMetrics metrics) {
+        this.rules = new ArrayList<>();
+        for (String filter : filters) {
+            filter = filter.trim();
+            if (filter.isEmpty()) {
+                continue;
+            }
+            String service = ANY;
+            String endpoint = ANY;
+            String pattern = filter;
+            int first = filter.indexOf(':');
+            if (first >= 0) {
+                service = filter.substring(0, first).trim();
+                pattern = filter.substring(first + 1);
+                int second = pattern.indexOf(':');
+                String scope = second >= 0 ? pattern.substring(0, second).trim() : null;
+                if (scope != null && (scope.startsWith("/") || ANY.equals(scope))) {
+                    endpoint = scope;
+                    pattern = pattern.substring(second + 1);
+                }
+            }
+            pattern = pattern.trim();
+            boolean exclude = pattern.startsWith("!");
+            this.rules.add(new Rule(service, endpoint, exclude ? pattern.substring(1) : pattern, exclude, metrics.filterDropped(filter)));
+        }
+        this.unmatched = metrics.filterDropped("unmatched");
+        this.targets = new ConcurrentHashMap<>();
+        this.states = ThreadLocal.withInitial(KeyFilter.States::new);
+    }
+
+    /**
+     * @return the keys of the target which are forwarded, or null to forward them all
+     */
+    public Predicate<String> forTarget(String serviceId, String endpoint) {
+        if (this.rules.isEmpty()) {
+            return null;
+        }
+        Predicate<String> filter = this.targets.computeIfAbsent(serviceId + ' ' + endpoint, key -> compile(serviceId, endpoint));
+        return filter != ALL ? filter : null;
+    }
+
+    private Predicate<String> compile(String serviceId, String endpoint) {
+        List<Rule> applying = new ArrayList<>();
+        for (Rule rule : this.rules) {
+            if ((ANY.equals(rule.service) || rule.service.equalsIgnoreCase(serviceId))
+                    && (ANY.equals(rule.endpoint) || rule.endpoint.equals(endpoint))) {
+                applying.add(rule);
+            }
+        }
+        return applying.isEmpty() ? ALL : new KeyFilter(applying, this.unmatched, this.states);
+    }
+
+    static final class Rule {
+        private final String service;
+        private final String endpoint;
+        private final String pattern;
+        private final boolean exclude;
+        private final Counter dropped;
+
+        Rule(String service, String endpoint, String pattern, boolean exclude, Counter dropped) {
+            this.service = service;
+            this.endpoint = endpoint;
+            this.pattern = pattern;
+            this.exclude = exclude;
+            this.dropped = dropped;
+        }
+
+        String getPattern() {
+            return this.pattern;
+        }
+
+        boolean isExclude() {
+            return this.exclude;
+        }
+
+        Counter getDropped() {
+            return this.dropped;
+        }
+    }
+}
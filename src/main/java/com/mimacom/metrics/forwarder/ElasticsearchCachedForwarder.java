@@ -1,24 +1,34 @@
 package com.mimacom.metrics.forwarder;
 
+import com.mimacom.metrics.elasticsearch.ElasticsearchNodes;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkCompressor;
+import com.mimacom.metrics.elasticsearch.util.BulkItemResponses;
 import com.mimacom.metrics.elasticsearch.util.BulkManager;
 import com.mimacom.metrics.elasticsearch.util.IndexManager;
-import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.spool.MetricSpool;
 import org.apache.http.HttpEntity;
 import org.apache.http.Header;
-import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.ResponseListener;
-import org.elasticsearch.client.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cloud.client.ServiceInstance;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Enrique Llerena Dominguez
@@ -27,50 +37,358 @@ import java.util.*;
 public class ElasticsearchCachedForwarder {
 
     private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchCachedForwarder.class);
-    private final RestClient esRestClient;
-    private final Map<String, String> indices;
+    private final ElasticsearchNodes nodes;
+    private final IndexManager indexManager;
     private final Header[] headers;
+    private final Header[] compressedHeaders;
+    private final BulkCompressor compressor;
     private final BulkManager bulkManager;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Semaphore inFlightRequests;
+    private final ScheduledExecutorService retryScheduler;
+    private final MetricSpool spool;
+    private final AtomicBoolean elasticsearchAvailable;
+    private final AtomicBoolean replaying;
+    private final ForwarderMetrics metrics;
 
     @Autowired
-    public ElasticsearchCachedForwarder(RestClient esRestClient,
-                                        @Value("${metricpoller.endpoints:/admin/metrics}") String[] metricsEndpoints,
+    public ElasticsearchCachedForwarder(ElasticsearchNodes nodes,
                                         BulkManager bulkManager,
-                                        IndexManager indexManager) {
-        this.esRestClient = esRestClient;
-        this.indices = new HashMap <>();
-        //Build the index name based on the endpoint, and then relate them.
-        for (String endpoint : metricsEndpoints) {
-            this.indices.put(endpoint, indexManager.getIndexName(endpoint));
-        }
+                                        IndexManager indexManager,
+                                        @Value("${metricpoller.bulk.retry.max:3}") int maxRetries,
+                                        @Value("${metricpoller.bulk.retry.backoff.initial:500}") long initialBackoffMillis,
+                                        @Value("${metricpoller.bulk.retry.backoff.max:30000}") long maxBackoffMillis,
+                                        @Value("${metricpoller.bulk.inflight.max:4}") int maxInFlightRequests,
+                                        Optional<MetricSpool> spool,
+                                        @Value("${metricpoller.spool.replay.rate:5}") int replayRate,
+                                        Optional<BulkCompressor> compressor,
+                                        ForwarderMetrics metrics) {
+        this.nodes = nodes;
+        this.indexManager = indexManager;
         this.bulkManager = bulkManager;
         this.headers = new Header[]{this.bulkManager.getHeader()};
+        this.compressor = compressor.orElse(null);
+        this.compressedHeaders = this.compressor != null ? new Header[]{this.bulkManager.getHeader(), this.compressor.getHeader()} : this.headers;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.spool = spool.orElse(null);
+        this.elasticsearchAvailable = new AtomicBoolean(true);
+        this.replaying = new AtomicBoolean();
+        this.metrics = metrics;
+        metrics.gauge("bulk.inflight", () -> maxInFlightRequests - this.inFlightRequests.availablePermits());
+        metrics.gauge("elasticsearch.nodes.healthy", nodes::getHealthyNodes);
+        if (this.spool != null) {
+            metrics.gauge("spool.bytes", this.spool::getBytes);
+        }
+        if (this.bulkManager.isAutoflush() && this.bulkManager.getLinger() > 0) {
+            long lingerCheckPeriod = Math.max(1, this.bulkManager.getLinger() / 4);
+            this.retryScheduler.scheduleWithFixedDelay(this::flushLingering, lingerCheckPeriod, lingerCheckPeriod, TimeUnit.MILLISECONDS);
+        }
+        if (this.spool != null) {
+            //replaying also probes whether Elasticsearch is back
+            long replayPeriod = Math.max(1, 1000 / replayRate);
+            this.retryScheduler.scheduleAtFixedRate(this::replay, replayPeriod, replayPeriod, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public void cache(HashMap<String, Object> message, ServiceInstance instance, String endpoint) throws IOException {
-        String jsonContent = MessageBuilder.buildMessageFromMetrics(message, endpoint, instance);
-        this.bulkManager.addInstruction(this.indices.get(endpoint), jsonContent);
+    /**
+     * Caches the first {@code length} bytes of a UTF-8 encoded document, into the index of the period of its timestamp.
+     */
+    public void cache(byte[] document, int length, String endpoint, long timestamp) throws IOException {
+        this.bulkManager.addInstruction(this.indexManager.getActionAndMetadata(endpoint, timestamp), document, 0, length);
         if (this.bulkManager.isAutoflush() && this.bulkManager.isCacheFull()) {
             this.flush();
         }
     }
 
-    @PreDestroy
+    /**
+     * Sends the cached documents, split into requests of at most {@link BulkManager#getBytesToCache()} bytes. When
+     * the maximum of bulk requests are already in flight, the caller is blocked until one of them completes, which
+     * slows the producers down instead of piling requests onto the cluster.
+     * While Elasticsearch is unavailable the documents go to the spool instead. Once it is back they are sent right
+     * away, and the spool is replayed alongside.
+     */
     public void flush() throws IOException {
-        String jsonContent = this.bulkManager.getBulkRequest();
-        HttpEntity entity = new NStringEntity(jsonContent);
-        esRestClient.performRequestAsync("POST", BulkManager.BULK_ENDPOINT, Collections.emptyMap(), entity, new ResponseListener() {
+        BulkBuffer bulkRequest = this.bulkManager.drainBulkRequest();
+        if (bulkRequest.isEmpty()) {
+            this.bulkManager.release(bulkRequest);
+            return;
+        }
+        if (bulkRequest.size() <= this.bulkManager.getBytesToCache()) {
+            dispatch(bulkRequest);
+            return;
+        }
+        //too big for a single request
+        int document = 0;
+        while (document < bulkRequest.getDocuments()) {
+            BulkBuffer splitRequest = this.bulkManager.acquire();
+            document = this.bulkManager.split(bulkRequest, document, splitRequest);
+            dispatch(splitRequest);
+        }
+        this.bulkManager.release(bulkRequest);
+    }
+
+    private void dispatch(BulkBuffer bulkRequest) {
+        if (this.spool != null && !this.elasticsearchAvailable.get() && spool(bulkRequest)) {
+            return;
+        }
+        send(bulkRequest, 0, null);
+    }
+
+    /**
+     * Flushes the documents which have been waiting longer than the linger time, even if the cache is not full.
+     */
+    private void flushLingering() {
+        try {
+            if (this.bulkManager.isCacheFull()) {
+                this.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error on flushing the cache", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        this.flush();
+        this.retryScheduler.shutdown();
+    }
+
+    /**
+     * @param replay where the request was read from the spool, it is then acknowledged or left in the spool. Null
+     *               for the requests not read from the spool
+     */
+    private void send(BulkBuffer bulkRequest, int attempt, MetricSpool.Position replay) {
+        boolean permit = acquireInFlightPermit();
+        //the compressed copy only lives as long as the request, the documents to retry are taken from the original
+        BulkBuffer compressed = compress(bulkRequest);
+        BulkBuffer body = compressed != null ? compressed : bulkRequest;
+        HttpEntity entity = new NByteArrayEntity(body.array(), 0, body.size());
+        this.metrics.bulkRequestSent(bulkRequest.size(), bulkRequest.getDocuments());
+        ElasticsearchNodes.Node node = this.nodes.acquire();
+        long start = System.nanoTime();
+        node.getClient().performRequestAsync("POST", BulkManager.BULK_ENDPOINT, Collections.emptyMap(), entity, new ResponseListener() {
             @Override
             public void onSuccess(Response response) {
+                nodes.release(node, System.nanoTime() - start, false);
+                releaseInFlightPermit(permit);
+                releaseCompressed(compressed);
+                metrics.bulkRequestCompleted(System.nanoTime() - start);
                 LOG.debug("Successfully submitted metrics");
+                elasticsearchAvailable.set(true);
+                if (replay != null) {
+                    spool.acknowledge(replay);
+                    replaying.set(false);
+                    replayNext();
+                }
+                handleItemResponses(bulkRequest, response, attempt);
             }
 
             @Override
             public void onFailure(Exception exception) {
-                LOG.error("Error submitting metrics",exception);
+                nodes.release(node, System.nanoTime() - start, isNodeFailure(exception));
+                releaseInFlightPermit(permit);
+                releaseCompressed(compressed);
+                metrics.bulkRequestFailed();
+                if (replay != null) {
+                    LOG.debug("Elasticsearch still unavailable, the spool is kept: {}", exception.getMessage());
+                    elasticsearchAvailable.set(false);
+                    bulkManager.release(bulkRequest);
+                    replaying.set(false);
+                } else if (isRetryable(exception)) {
+                    LOG.warn("Error submitting metrics, attempt {}: {}", attempt + 1, exception.getMessage());
+                    elasticsearchAvailable.set(false);
+                    retry(bulkRequest, attempt + 1);
+                } else {
+                    LOG.error(String.format("Error submitting metrics, dropping %d documents", bulkRequest.getDocuments()), exception);
+                    metrics.documentsDropped(bulkRequest.getDocuments());
+                    bulkManager.release(bulkRequest);
+                }
+            }
+        }, compressed != null ? this.compressedHeaders : this.headers);
+    }
+
+    /**
+     * @return the gzip encoded copy of the bulk request, or null without compression
+     */
+    private BulkBuffer compress(BulkBuffer bulkRequest) {
+        if (this.compressor == null) {
+            return null;
+        }
+        BulkBuffer compressed = this.bulkManager.acquire();
+        this.compressor.compress(bulkRequest, compressed);
+        this.metrics.bulkRequestCompressed(bulkRequest.size(), compressed.size());
+        return compressed;
+    }
+
+    private void releaseCompressed(BulkBuffer compressed) {
+        if (compressed != null) {
+            this.bulkManager.release(compressed);
+        }
+    }
+
+    /**
+     * Requeues the items rejected with a transient status, the items failing for any other reason are dropped.
+     */
+    private void handleItemResponses(BulkBuffer bulkRequest, Response response, int attempt) {
+        try {
+            BulkItemResponses itemResponses = response.getEntity() != null
+                    ? BulkItemResponses.parse(response.getEntity().getContent())
+                    : null;
+            if (itemResponses == null || !itemResponses.hasFailures()) {
+                return;
+            }
+
+            this.metrics.itemsRejected(itemResponses.getFailures());
+            BulkBuffer retryRequest = this.bulkManager.acquire();
+            for (int failure = 0; failure < itemResponses.getFailures(); failure++) {
+                if (isRetryable(itemResponses.getFailedStatus(failure))) {
+                    retryRequest.writeDocument(bulkRequest, itemResponses.getFailedItem(failure));
+                }
+            }
+            int dropped = itemResponses.getFailures() - retryRequest.getDocuments();
+            if (dropped > 0) {
+                LOG.error("{} of {} documents rejected, first failure: {}", dropped, bulkRequest.getDocuments(), itemResponses.getFirstFailure());
+                this.metrics.documentsDropped(dropped);
+            }
+            if (retryRequest.isEmpty()) {
+                this.bulkManager.release(retryRequest);
+            } else {
+                LOG.warn("{} of {} documents rejected temporarily, attempt {}: {}", retryRequest.getDocuments(), bulkRequest.getDocuments(), attempt + 1, itemResponses.getFirstFailure());
+                retry(retryRequest, attempt + 1);
             }
-        }, this.headers);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error reading the bulk response", e);
+        } finally {
+            this.bulkManager.release(bulkRequest);
+        }
+    }
+
+    private void retry(BulkBuffer bulkRequest, int attempt) {
+        if (attempt > this.maxRetries) {
+            if (this.spool == null || !spool(bulkRequest)) {
+                LOG.error("Dropping {} documents after {} attempts", bulkRequest.getDocuments(), attempt);
+                this.metrics.documentsDropped(bulkRequest.getDocuments());
+                this.bulkManager.release(bulkRequest);
+            }
+            return;
+        }
+        this.metrics.documentsRetried(bulkRequest.getDocuments());
+        try {
+            this.retryScheduler.schedule(() -> send(bulkRequest, attempt, null), backoff(attempt), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Dropping %d documents, the retry could not be scheduled", bulkRequest.getDocuments()), e);
+            this.metrics.documentsDropped(bulkRequest.getDocuments());
+            this.bulkManager.release(bulkRequest);
+        }
+    }
+
+    /**
+     * Moves the bulk request to the spool and releases its buffer.
+     *
+     * @return false if it could not be written, the buffer is then kept
+     */
+    private boolean spool(BulkBuffer bulkRequest) {
+        try {
+            this.spool.append(bulkRequest);
+            this.metrics.documentsSpooled(bulkRequest.getDocuments());
+            this.bulkManager.release(bulkRequest);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error writing to the spool", e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends the oldest spooled bulk request, one at a time. Run at the replay rate, which probes whether Elasticsearch
+     * is back, and right after every request replayed successfully, so the spool drains as fast as Elasticsearch
+     * takes it.
+     */
+    private void replay() {
+        if (!this.replaying.compareAndSet(false, true)) {
+            return;
+        }
+        BulkBuffer bulkRequest = this.bulkManager.acquire();
+        try {
+            MetricSpool.Position position = this.spool.read(bulkRequest);
+            if (position != null) {
+                send(bulkRequest, 0, position);
+                return;
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Error replaying the spool", e);
+        }
+        this.bulkManager.release(bulkRequest);
+        this.replaying.set(false);
+    }
+
+    /**
+     * Replays the next request from the scheduler, the response callbacks must not wait for an in-flight permit.
+     */
+    private void replayNext() {
+        try {
+            this.retryScheduler.execute(this::replay);
+        } catch (RuntimeException e) {
+            //shut down, the spool is replayed after the restart
+            LOG.debug("Replay not scheduled: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and the whole of the exponential delay.
+     */
+    private long backoff(int attempt) {
+        long exponential = Math.min(this.maxBackoffMillis, this.initialBackoffMillis << Math.min(attempt - 1, 30));
+        return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+
+    private boolean acquireInFlightPermit() {
+        try {
+            this.inFlightRequests.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            //the documents are still sent, just not accounted against the limit
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void releaseInFlightPermit(boolean permit) {
+        if (permit) {
+            this.inFlightRequests.release();
+        }
+    }
+
+    private static boolean isRetryable(Exception exception) {
+        if (exception instanceof ResponseException) {
+            return isRetryable(((ResponseException) exception).getResponse().getStatusLine().getStatusCode());
+        }
+        //connection problems and timeouts
+        return exception instanceof IOException;
+    }
+
+    /**
+     * @return whether the node itself is failing, rather than the cluster pushing back or the request being invalid
+     */
+    private static boolean isNodeFailure(Exception exception) {
+        if (exception instanceof ResponseException) {
+            int status = ((ResponseException) exception).getResponse().getStatusLine().getStatusCode();
+            return status == 502 || status == 503 || status == 504;
+        }
+        return exception instanceof IOException;
+    }
 
-        this.bulkManager.clearCachedInstructions();
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
     }
-}
\ No newline at end of file
+}
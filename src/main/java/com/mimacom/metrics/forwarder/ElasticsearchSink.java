@@ -0,0 +1,60 @@
+package com.mimacom.metrics.forwarder;
+
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.MetricSink;
+import com.mimacom.metrics.sink.SinkSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Caches the documents for the bulk requests of the {@link ElasticsearchCachedForwarder}. Without autoflush the cache
+ * is flushed at the end of every batch, with autoflush the cache limits decide.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.sink.elasticsearch.enabled", havingValue = "true", matchIfMissing = true)
+public class ElasticsearchSink implements MetricSink {
+
+    private final ElasticsearchCachedForwarder forwarder;
+    private final boolean autoflush;
+    private final SinkSettings settings;
+
+    @Autowired
+    public ElasticsearchSink(ElasticsearchCachedForwarder forwarder,
+                             BulkManager bulkManager,
+                             @Value("${metricpoller.sink.elasticsearch.batch:0}") int batch,
+                             @Value("${metricpoller.sink.elasticsearch.linger:0}") long lingerMillis,
+                             @Value("${metricpoller.sink.elasticsearch.overflow:block}") String overflow) {
+        this.forwarder = forwarder;
+        this.autoflush = bulkManager.isAutoflush();
+        this.settings = new SinkSettings(batch, lingerMillis, overflow);
+    }
+
+    @Override
+    public String getName() {
+        return "elasticsearch";
+    }
+
+    @Override
+    public SinkSettings getSettings() {
+        return this.settings;
+    }
+
+    @Override
+    public void write(MetricDocument document) throws IOException {
+        this.forwarder.cache(document.getSource(), document.getLength(), document.getEndpoint(), document.getTimestamp());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!this.autoflush) {
+            this.forwarder.flush();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.mimacom.metrics.instrumentation;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Instrumentation of the forwarder's own pipeline: scraping, the sinks, caching and bulk indexing. The metrics are
+ * kept in the Dropwizard registry, so they are served by the forwarder's actuator <code>/metrics</code> endpoint like
+ * any other metric, timers and histograms with their percentiles.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+public class ForwarderMetrics {
+
+    private static final String PREFIX = "metricforwarder.";
+
+    private final MetricRegistry registry;
+    private final Timer tick;
+    private final Counter skippedTicks;
+    private final Counter scrapedBytes;
+    private final Histogram bulkRequestBytes;
+    private final Histogram bulkRequestDocuments;
+    private final Histogram bulkRequestCompressedBytes;
+    private final Counter uncompressedBytes;
+    private final Counter compressedBytes;
+    private final Timer bulkRequestLatency;
+    private final Counter bulkRequestFailures;
+    private final Counter rejectedItems;
+    private final Counter retriedDocuments;
+    private final Counter droppedDocuments;
+    private final Counter spooledDocuments;
+    private final Counter pushedDocuments;
+    private final Counter rejectedPushes;
+    private final Map<String, TargetMetrics> targets;
+
+    @Autowired
+    public ForwarderMetrics(MetricRegistry registry, BulkManager bulkManager) {
+        this.registry = registry;
+        this.tick = registry.timer(PREFIX + "tick");
+        this.skippedTicks = registry.counter(PREFIX + "tick.skipped");
+        this.scrapedBytes = registry.counter(PREFIX + "scrape.bytes");
+        this.bulkRequestBytes = registry.histogram(PREFIX + "bulk.request.bytes");
+        this.bulkRequestDocuments = registry.histogram(PREFIX + "bulk.request.documents");
+        this.bulkRequestCompressedBytes = registry.histogram(PREFIX + "bulk.request.compressed.bytes");
+        this.uncompressedBytes = new Counter();
+        this.compressedBytes = new Counter();
+        this.bulkRequestLatency = registry.timer(PREFIX + "bulk.request.latency");
+        this.bulkRequestFailures = registry.counter(PREFIX + "bulk.request.failures");
+        this.rejectedItems = registry.counter(PREFIX + "bulk.items.rejected");
+        this.retriedDocuments = registry.counter(PREFIX + "bulk.documents.retried");
+        this.droppedDocuments = registry.counter(PREFIX + "bulk.documents.dropped");
+        this.spooledDocuments = registry.counter(PREFIX + "bulk.documents.spooled");
+        this.pushedDocuments = registry.counter(PREFIX + "push.documents");
+        this.rejectedPushes = registry.counter(PREFIX + "push.rejected");
+        this.targets = new ConcurrentHashMap<>();
+        gauge("bulk.cache.documents", bulkManager::getCachedDocuments);
+        gauge("bulk.cache.bytes", bulkManager::getCachedBytes);
+        //uncompressed size divided by the compressed size, of all the bulk requests so far
+        gauge("bulk.compression.ratio", () -> this.compressedBytes.getCount() == 0 ? 0.0 : (double) this.uncompressedBytes.getCount() / this.compressedBytes.getCount());
+    }
+
+    /**
+     * Registers a gauge read whenever the metrics are requested.
+     */
+    public <T> void gauge(String name, Supplier<T> value) {
+        Gauge<T> gauge = value::get;
+        this.registry.register(PREFIX + name, gauge);
+    }
+
+    public void tick(long nanos) {
+        this.tick.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void tickSkipped() {
+        this.skippedTicks.inc();
+    }
+
+    public void scrape(String serviceId, String endpoint, long nanos, long bytes) {
+        target(serviceId, endpoint).latency.update(nanos, TimeUnit.NANOSECONDS);
+        this.scrapedBytes.inc(bytes);
+    }
+
+    public void scrapeFailed(String serviceId, String endpoint) {
+        target(serviceId, endpoint).failures.inc();
+    }
+
+    public void scrapeTimedOut(String serviceId, String endpoint) {
+        target(serviceId, endpoint).timeouts.inc();
+    }
+
+    public void circuitOpened(String serviceId, String endpoint) {
+        target(serviceId, endpoint).circuitsOpened.inc();
+    }
+
+    public void pushed(int documents) {
+        this.pushedDocuments.inc(documents);
+    }
+
+    public void pushRejected() {
+        this.rejectedPushes.inc();
+    }
+
+    /**
+     * @return the counter of the keys dropped by the filter, e.g. <code>metricforwarder.filter.!counter.status.404.*.dropped</code>
+     */
+    public Counter filterDropped(String filter) {
+        return this.registry.counter(PREFIX + "filter." + filter + ".dropped");
+    }
+
+    public void bulkRequestSent(int bytes, int documents) {
+        this.bulkRequestBytes.update(bytes);
+        this.bulkRequestDocuments.update(documents);
+    }
+
+    public void bulkRequestCompressed(int bytes, int compressed) {
+        this.bulkRequestCompressedBytes.update(compressed);
+        this.uncompressedBytes.inc(bytes);
+        this.compressedBytes.inc(compressed);
+    }
+
+    public void bulkRequestCompleted(long nanos) {
+        this.bulkRequestLatency.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void bulkRequestFailed() {
+        this.bulkRequestFailures.inc();
+    }
+
+    public void itemsRejected(int items) {
+        this.rejectedItems.inc(items);
+    }
+
+    public void documentsRetried(int documents) {
+        this.retriedDocuments.inc(documents);
+    }
+
+    public void documentsDropped(int documents) {
+        this.droppedDocuments.inc(documents);
+    }
+
+    public void documentsSpooled(int documents) {
+        this.spooledDocuments.inc(documents);
+    }
+
+    /**
+     * @param documents lost by the sink, overwritten in the ring before it got to them
+     */
+    public void sinkDropped(String sink, long documents) {
+        this.registry.counter(PREFIX + "sink." + sink + ".dropped").inc(documents);
+    }
+
+    /**
+     * @param nanos a publisher waited for the sink to read the slot it was about to overwrite
+     */
+    public void sinkBlocked(String sink, long nanos) {
+        this.registry.timer(PREFIX + "sink." + sink + ".blocked").update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void sinkFailed(String sink) {
+        this.registry.counter(PREFIX + "sink." + sink + ".errors").inc();
+    }
+
+    /**
+     * @param points not kept by the recent metric store, as it holds as many metrics as it can
+     */
+    public void recentPointsRejected(int points) {
+        this.registry.counter(PREFIX + "recent.points.rejected").inc(points);
+    }
+
+    private TargetMetrics target(String serviceId, String endpoint) {
+        String key = serviceId + endpoint;
+        TargetMetrics target = this.targets.get(key);
+        return target != null ? target : this.targets.computeIfAbsent(key, k -> new TargetMetrics(serviceId, endpoint));
+    }
+
+    /**
+     * Metrics of the scrapes of one endpoint of a service, e.g. <code>metricforwarder.scrape.orders.admin.metrics</code>.
+     */
+    private class TargetMetrics {
+        private final Timer latency;
+        private final Counter failures;
+        private final Counter timeouts;
+        private final Counter circuitsOpened;
+
+        TargetMetrics(String serviceId, String endpoint) {
+            String name = PREFIX + "scrape." + serviceId.toLowerCase() + "." + (endpoint.startsWith("/") ? endpoint.substring(1) : endpoint).replace('/', '.');
+            this.latency = registry.timer(name);
+            this.failures = registry.counter(name + ".failures");
+            this.timeouts = registry.counter(name + ".timeouts");
+            this.circuitsOpened = registry.counter(name + ".circuit.opened");
+        }
+    }
+}
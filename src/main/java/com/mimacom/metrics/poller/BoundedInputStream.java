@@ -0,0 +1,68 @@
+package com.mimacom.metrics.poller;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the scraped response, or from a pushed request body, and fails once it grows beyond the
+ * maximum size or takes longer than its deadline. The bytes are counted after decompression.
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+    private final long maxBytes;
+    private final long deadlineNanos;
+    private long count;
+
+    public BoundedInputStream(InputStream in, long maxBytes, long deadlineNanos) {
+        super(in);
+        this.maxBytes = maxBytes;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkDeadline();
+        int b = super.read();
+        if (b != -1) {
+            add(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkDeadline();
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            add(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkDeadline();
+        long skipped = super.skip(n);
+        add(skipped);
+        return skipped;
+    }
+
+    private void add(long read) throws IOException {
+        count += read;
+        if (count > maxBytes) {
+            throw new IOException("Response larger than the maximum of " + maxBytes + " bytes");
+        }
+    }
+
+    private void checkDeadline() throws IOException {
+        //a read blocks at most the read timeout, so the response is cut off shortly after its deadline
+        if (System.nanoTime() - deadlineNanos > 0) {
+            throw new IOException("Response not complete within its deadline");
+        }
+    }
+}
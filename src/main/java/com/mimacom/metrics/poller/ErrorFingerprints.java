@@ -0,0 +1,137 @@
+package com.mimacom.metrics.poller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.stereotype.Component;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the error documents of failing instances small. A failure is fingerprinted by its exception type, message
+ * and top stack frames; the document of a scrape failure carries the fingerprint, when it was first and last seen
+ * and how often it occurred, while the full stack trace is only sent once per fingerprint and window.
+ * <p>
+ * A fingerprint which did not occur for a whole window is forgotten, its next occurrence starts over.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+public class ErrorFingerprints {
+
+    static final String ERROR_KEY = "error";
+    static final String EXCEPTION_MSG_KEY = "exceptionMsg";
+    static final String EXCEPTION_TYPE_KEY = "exceptionType";
+    static final String EXCEPTION_STACKTRACE_KEY = "exceptionStacktrace";
+    static final String FINGERPRINT_KEY = "fingerprint";
+    static final String FIRST_SEEN_KEY = "firstSeen";
+    static final String LAST_SEEN_KEY = "lastSeen";
+    static final String COUNT_KEY = "count";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long windowMillis;
+    private final int frames;
+    private final ConcurrentMap<String, Occurrence> occurrences;
+    private volatile long nextSweep;
+
+    @Autowired
+    public ErrorFingerprints(@Value("${metricpoller.errors.window:300000}") long windowMillis,
+                             @Value("${metricpoller.errors.frames:5}") int frames) {
+        this.windowMillis = windowMillis;
+        this.frames = frames;
+        this.occurrences = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records the failure of a scrape.
+     *
+     * @return the fields of the error document
+     */
+    public HashMap<String, Object> describe(ServiceInstance instance, String endpoint, String message, Throwable error, long now) {
+        sweep(now);
+        String fingerprint = fingerprint(error);
+        HashMap<String, Object> document = new HashMap<>(12);
+        document.put(ERROR_KEY, message);
+        document.put(EXCEPTION_MSG_KEY, error.getMessage());
+        document.put(EXCEPTION_TYPE_KEY, error.getClass().getName());
+        document.put(FINGERPRINT_KEY, fingerprint);
+
+        //the same failure of different targets is counted per target
+        String key = instance.getServiceId() + ' ' + instance.getUri() + endpoint + ' ' + fingerprint;
+        this.occurrences.compute(key, (k, occurrence) -> {
+            if (occurrence == null || now - occurrence.lastSeen >= this.windowMillis) {
+                occurrence = new Occurrence(now);
+            }
+            occurrence.lastSeen = now;
+            occurrence.count++;
+            document.put(FIRST_SEEN_KEY, occurrence.firstSeen);
+            document.put(LAST_SEEN_KEY, occurrence.lastSeen);
+            document.put(COUNT_KEY, occurrence.count);
+            if (occurrence.traced == null || now - occurrence.traced >= this.windowMillis) {
+                occurrence.traced = now;
+                document.put(EXCEPTION_STACKTRACE_KEY, stackTrace(error));
+            }
+            return occurrence;
+        });
+        return document;
+    }
+
+    /**
+     * @return a hash of the exception type, its message and its top frames
+     */
+    String fingerprint(Throwable error) {
+        long hash = hash(FNV_OFFSET, error.getClass().getName());
+        hash = hash(hash, String.valueOf(error.getMessage()));
+        StackTraceElement[] stackTrace = error.getStackTrace();
+        for (int i = 0; i < Math.min(this.frames, stackTrace.length); i++) {
+            hash = hash(hash, stackTrace[i].getClassName());
+            hash = hash(hash, stackTrace[i].getMethodName());
+            hash = hash(hash, Integer.toString(stackTrace[i].getLineNumber()));
+        }
+        return Long.toHexString(hash);
+    }
+
+    int getFingerprints() {
+        return this.occurrences.size();
+    }
+
+    private void sweep(long now) {
+        if (now < this.nextSweep) {
+            return;
+        }
+        this.nextSweep = now + this.windowMillis;
+        this.occurrences.values().removeIf(occurrence -> now - occurrence.lastSeen >= this.windowMillis);
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        //separates the values
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static String stackTrace(Throwable error) {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    private static final class Occurrence {
+        private final long firstSeen;
+        private long lastSeen;
+        private long count;
+        //when the full trace was last sent
+        private Long traced;
+
+        Occurrence(long firstSeen) {
+            this.firstSeen = firstSeen;
+        }
+    }
+}
@@ -1,19 +1,51 @@
 package com.mimacom.metrics.poller;
 
-import com.mimacom.metrics.forwarder.ElasticsearchCachedForwarder;
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.cluster.ClusterShards;
+import com.mimacom.metrics.delta.DeltaTracker;
+import com.mimacom.metrics.discovery.ServiceTopology;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.elasticsearch.util.MetricTransform;
+import com.mimacom.metrics.filter.MetricFilters;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.rollup.RollupAggregator;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.SinkRing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.ServiceInstance;
-import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * @author Enrique Llerena Dominguez
@@ -22,86 +54,349 @@ import java.util.List;
 @Component
 public class MetricPollerService {
 
-    private static final String EXCEPTION_MSG_KEY = "exceptionMsg";
-    private static final String EXCEPTION_STACKTRACE_KEY = "exceptionStacktrace";
-    private static final String ERROR_KEY = "error";
     private static final String ERROR_MESSAGE = "Instance not reachable";
+    private static final String TIMEOUT_MESSAGE = "Scrape timed out";
 
     private static final Logger LOG = LoggerFactory.getLogger(MetricPollerService.class);
+    private static final RequestCallback ACCEPT_JSON = request -> request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
 
-    private final DiscoveryClient discoveryClient;
+    private final ServiceTopology topology;
     private final RestTemplate restTemplate;
-    private final ElasticsearchCachedForwarder forwarder;
+    private final SinkRing sinks;
+    private final IndexManager indexManager;
     private final String[] metricsEndpoints;
-    private final boolean autoflush;
-
+    private final long tickDeadlineMillis;
+    private final long maxResponseBytes;
+    private final long responseTimeoutNanos;
+    private final ExecutorService scrapeExecutor;
+    private final ForwarderMetrics metrics;
+    private final ErrorFingerprints errors;
+    private final MetricFilters filters;
+    private final DeltaTracker deltaTracker;
+    private final RollupAggregator rollup;
+    private final ClusterShards shards;
+    private final AtomicBoolean polling = new AtomicBoolean();
 
     @Autowired
-    public MetricPollerService(@SuppressWarnings("SpringJavaAutowiringInspection") DiscoveryClient discoveryClient,
+    public MetricPollerService(ServiceTopology topology,
                                RestTemplate restTemplate,
-                               ElasticsearchCachedForwarder forwarder,
+                               SinkRing sinks,
+                               IndexManager indexManager,
                                @Value("${metricpoller.endpoints:/admin/metrics}") String[] metricsEndpoints,
-                               @Value("${metricpoller.bulk.cache.autoflush:false}") Boolean autoflush) {
-        this.discoveryClient = discoveryClient;
+                               @Value("${metricpoller.poll.concurrency:16}") int concurrency,
+                               @Value("${metricpoller.poll.deadline:4000}") long tickDeadlineMillis,
+                               @Value("${metricpoller.poll.maxResponseBytes:10485760}") long maxResponseBytes,
+                               @Value("${metricpoller.poll.timeout.total:4000}") long responseTimeoutMillis,
+                               ForwarderMetrics metrics,
+                               ErrorFingerprints errors,
+                               MetricFilters filters,
+                               Optional<DeltaTracker> deltaTracker,
+                               Optional<RollupAggregator> rollup,
+                               Optional<ClusterShards> shards) {
+        this.topology = topology;
         this.restTemplate = restTemplate;
-        this.forwarder = forwarder;
+        this.sinks = sinks;
+        this.indexManager = indexManager;
         this.metricsEndpoints = metricsEndpoints;
-        this.autoflush = autoflush;
+        this.tickDeadlineMillis = tickDeadlineMillis;
+        this.maxResponseBytes = maxResponseBytes;
+        this.responseTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(responseTimeoutMillis);
+        this.scrapeExecutor = Executors.newFixedThreadPool(concurrency, new ScrapeThreadFactory());
+        this.metrics = metrics;
+        this.errors = errors;
+        this.filters = filters;
+        this.deltaTracker = deltaTracker.orElse(null);
+        this.rollup = rollup.orElse(null);
+        this.shards = shards.orElse(null);
     }
 
 
     public void pollInstances() {
-        //Get all the registered services
-        List<String> services = discoveryClient.getServices();
-
-        for (String service : services) {
-            //Get all the instances of each service
-            List<ServiceInstance> instances = discoveryClient.getInstances(service);
-
-            LOG.info("Service:{}. Count of instances found {}", service, instances.size());
-
-            int count = 1;
-            for (ServiceInstance instance : instances) {
-                for(String endpoint : this.metricsEndpoints) {
-                    LOG.debug("Processing instance #{0}, endpoint {1}", count++, endpoint);
-                    //Get the metrics and delegate the forwarding of the message
-                    HashMap<String, Object> result = this.getMetrics(instance, endpoint);
-                    try {
-                        this.forwarder.cache(result, instance, endpoint);
-                    } catch(IOException ioe){
-                        LOG.error(MessageFormat.format("Error fetching endpoint {0} for service instance: {1} with url {2}", endpoint, instance.getServiceId(), buildInstanceUrl(instance, endpoint)), ioe);
+        if (!this.polling.compareAndSet(false, true)) {
+            //never overlaps with the previous tick, the tick is skipped instead
+            LOG.warn("Previous polling tick still running, skipping this one");
+            this.metrics.tickSkipped();
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.tickDeadlineMillis);
+            List<ScrapeTask> tasks = new ArrayList<>();
+
+            //Get all the registered services and their instances, as last seen in the registry
+            for (Map.Entry<String, List<ServiceInstance>> service : this.topology.getSnapshot().getServices().entrySet()) {
+                List<ServiceInstance> instances = service.getValue();
+
+                LOG.info("Service:{}. Count of instances found {}", service.getKey(), instances.size());
+
+                for (ServiceInstance instance : instances) {
+                    if (!isOwned(instance)) {
+                        //scraped by another replica of the cluster
+                        continue;
+                    }
+                    for(String endpoint : this.metricsEndpoints) {
+                        //Scrapes run concurrently and forward their result as soon as it arrives
+                        tasks.add(start(instance, endpoint, this.tickDeadlineMillis, null));
                     }
                 }
             }
+
+            awaitScrapes(tasks, deadline);
+            endOfTick();
+            this.metrics.tick(System.nanoTime() - start);
+        } finally {
+            this.polling.set(false);
         }
-        if(!this.autoflush){
-            try {
-                this.forwarder.flush();
-            } catch(IOException ioe){
-                LOG.error("Error on flushing the cache", ioe);
+    }
+
+    /**
+     * Starts the scrape of a single instance endpoint.
+     *
+     * @param deadlineMillis reported when the scrape is timed out through the handle
+     * @param listener       optional, told about the outcome of the scrape
+     */
+    ScrapeHandle submit(ServiceInstance instance, String endpoint, long deadlineMillis, ScrapeListener listener) {
+        return start(instance, endpoint, deadlineMillis, listener);
+    }
+
+    private ScrapeTask start(ServiceInstance instance, String endpoint, long deadlineMillis, ScrapeListener listener) {
+        ScrapeTask task = new ScrapeTask(instance, endpoint, deadlineMillis, listener);
+        task.future = this.scrapeExecutor.submit(task);
+        return task;
+    }
+
+    /**
+     * @return whether this forwarder scrapes the instance, always unless running as a cluster
+     */
+    boolean isOwned(ServiceInstance instance) {
+        return this.shards == null || this.shards.owns(instance);
+    }
+
+    /**
+     * Closes the ended rollup windows and ends the batch of the sinks.
+     */
+    void endOfTick() {
+        if (this.rollup != null) {
+            this.rollup.closeWindows(System.currentTimeMillis());
+        }
+        this.sinks.endOfTick();
+    }
+
+    String[] getMetricsEndpoints() {
+        return this.metricsEndpoints;
+    }
+
+    /**
+     * Waits for the scrapes of the current tick until the deadline is reached. Every scrape still running by then
+     * is cancelled and forwarded as a timeout.
+     */
+    private void awaitScrapes(List<ScrapeTask> tasks, long deadline) {
+        boolean interrupted = false;
+        for (ScrapeTask task : tasks) {
+            if (!interrupted) {
+                try {
+                    task.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    continue;
+                } catch (TimeoutException te) {
+                    //handled below
+                } catch (ExecutionException ee) {
+                    LOG.error(MessageFormat.format("Error scraping endpoint {0} for service instance: {1}", task.endpoint, task.instance.getServiceId()), ee.getCause());
+                    continue;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
             }
+            task.timeout();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private HashMap<String, Object> getMetrics(ServiceInstance instance, String endpoint) {
+    private void forward(HashMap<String, Object> result, ServiceInstance instance, String endpoint) {
+        long timestamp = System.currentTimeMillis();
+        this.sinks.publish(MetricDocument.of(MessageBuilder.buildMessageFromMetrics(result, endpoint, instance, timestamp, MessageOptions.of(this.indexManager.getSchema())), endpoint, timestamp));
+    }
+
+    /**
+     * Streams the metrics of the endpoint into the document buffer.
+     *
+     * @return null if the document was written, otherwise the error message to forward instead
+     */
+    private HashMap<String, Object> getMetrics(ServiceInstance instance, String endpoint, long timestamp, BulkBuffer document, MetricTransform transform) {
+            long start = System.nanoTime();
             try {
-                //use the REST template to get the metrics
-                return this.restTemplate.getForObject(buildInstanceUrl(instance, endpoint), HashMap.class);
+                //use the REST template to stream the metrics into the document
+                long bytes = this.restTemplate.execute(buildInstanceUrl(instance, endpoint), HttpMethod.GET, ACCEPT_JSON, response -> {
+                    BoundedInputStream body = new BoundedInputStream(response.getBody(), this.maxResponseBytes, start + this.responseTimeoutNanos);
+                    writeDocument(new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8)), instance, endpoint, timestamp, document, transform);
+                    return body.getCount();
+                });
+                this.metrics.scrape(instance.getServiceId(), endpoint, System.nanoTime() - start, bytes);
+                return null;
             } catch (Exception ex) {
+                this.metrics.scrapeFailed(instance.getServiceId(), endpoint);
                 LOG.error(MessageFormat.format("Error fetching endpoint {0} for service instance: {1} with url {2}", endpoint, instance.getServiceId(), buildInstanceUrl(instance, endpoint)), ex);
+                document.reset();
+                //the same failure repeats on every scrape of a dead instance, its trace is only sent now and then
+                return this.errors.describe(instance, endpoint, ERROR_MESSAGE, ex, timestamp);
+            }
+
+    }
 
-                HashMap<String, Object> returnValue = new HashMap<>(3);
-                returnValue.put(ERROR_KEY, ERROR_MESSAGE);
-                returnValue.put(EXCEPTION_MSG_KEY, ex.getMessage());
-                returnValue.put(EXCEPTION_STACKTRACE_KEY, ex.getStackTrace());
-                return returnValue;
+    /**
+     * Reads a metrics snapshot of the instance endpoint into the document buffer, through the filters and the delta
+     * and rollup transforms. Used for the scraped snapshots as well as the pushed ones.
+     *
+     * @return whether the document is to be forwarded, otherwise the buffer is left empty
+     */
+    public boolean writeDocument(JsonReader metrics, ServiceInstance instance, String endpoint, long timestamp, BulkBuffer document) throws IOException {
+        MetricTransform transform = beginTransform(instance, endpoint, timestamp);
+        try {
+            return writeDocument(metrics, instance, endpoint, timestamp, document, transform);
+        } finally {
+            if (transform != null) {
+                transform.release(true);
             }
+        }
+    }
 
+    /**
+     * @param transform optional, left to the caller to release
+     */
+    private boolean writeDocument(JsonReader metrics, ServiceInstance instance, String endpoint, long timestamp, BulkBuffer document, MetricTransform transform) throws IOException {
+        Predicate<String> keys = this.filters.forTarget(instance.getServiceId(), endpoint);
+        if (MessageBuilder.writeMessageFromMetrics(metrics, endpoint, instance, timestamp, document, new MessageOptions(this.indexManager.getSchema(), transform, keys)) == 0 && transform != null) {
+            //nothing left to forward from this snapshot
+            document.reset();
+        }
+        return !document.isEmpty();
+    }
+
+    /**
+     * @return the transforms of the scrape, null if there are none
+     */
+    private MetricTransform beginTransform(ServiceInstance instance, String endpoint, long timestamp) {
+        //the rollup aggregates every metric, the delta only sees the ones forwarded raw
+        return MetricTransform.chain(
+                this.rollup != null ? this.rollup.begin(instance, endpoint, timestamp) : null,
+                this.deltaTracker != null ? this.deltaTracker.begin(instance, endpoint, timestamp) : null);
     }
 
     private static String buildInstanceUrl(ServiceInstance instance, String endpoint) {
         return instance.getUri() + endpoint;
     }
 
+    @PreDestroy
+    public void shutdown() {
+        this.scrapeExecutor.shutdownNow();
+    }
+
+    /**
+     * Scrape of a single instance endpoint. Whoever completes it first, either the scrape itself or its deadline,
+     * forwards the outcome, so every scrape ends up in exactly one document.
+     */
+    private class ScrapeTask implements Runnable, ScrapeHandle {
+        private final ServiceInstance instance;
+        private final String endpoint;
+        private final long deadlineMillis;
+        private final ScrapeListener listener;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private Future<?> future;
+
+        ScrapeTask(ServiceInstance instance, String endpoint, long deadlineMillis, ScrapeListener listener) {
+            this.instance = instance;
+            this.endpoint = endpoint;
+            this.deadlineMillis = deadlineMillis;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            LOG.debug("Processing instance {}, endpoint {}", this.instance.getUri(), this.endpoint);
+            //Get the metrics and delegate the forwarding of the message
+            BulkBuffer document = sinks.acquire();
+            long timestamp = System.currentTimeMillis();
+            MetricTransform transform = beginTransform(this.instance, this.endpoint, timestamp);
+            boolean forwarded = false;
+            try {
+                HashMap<String, Object> error = getMetrics(this.instance, this.endpoint, timestamp, document, transform);
+                if (this.completed.compareAndSet(false, true)) {
+                    if (error != null) {
+                        if (this.listener == null || this.listener.onFailure()) {
+                            forward(error, this.instance, this.endpoint);
+                        }
+                    } else {
+                        forwarded = true;
+                        if (this.listener != null) {
+                            this.listener.onSuccess();
+                        }
+                        if (!document.isEmpty()) {
+                            sinks.publish(MetricDocument.of(document, this.endpoint, timestamp));
+                            //the buffer belongs to the ring now
+                            document = null;
+                        }
+                    }
+                }
+            } finally {
+                if (document != null) {
+                    sinks.release(document);
+                }
+                //a scrape timed out meanwhile was forwarded as a timeout, its values never reached Elasticsearch
+                if (transform != null) {
+                    transform.release(forwarded);
+                }
+            }
+        }
+
+        @Override
+        public void timeout() {
+            if (this.completed.compareAndSet(false, true)) {
+                this.future.cancel(true);
+                metrics.scrapeTimedOut(this.instance.getServiceId(), this.endpoint);
+                LOG.warn("Scrape of endpoint {} for service instance: {} with url {} did not finish within the deadline", this.endpoint, this.instance.getServiceId(), buildInstanceUrl(this.instance, this.endpoint));
+
+                if (this.listener == null || this.listener.onFailure()) {
+                    HashMap<String, Object> returnValue = new HashMap<>(2);
+                    returnValue.put(ErrorFingerprints.ERROR_KEY, TIMEOUT_MESSAGE);
+                    returnValue.put(ErrorFingerprints.EXCEPTION_MSG_KEY, "No response within the deadline of " + this.deadlineMillis + " ms");
+                    forward(returnValue, this.instance, this.endpoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * A scrape started by {@link #submit}.
+     */
+    interface ScrapeHandle {
+        /**
+         * Cancels the scrape unless it is complete already, and reports it as timed out.
+         */
+        void timeout();
+    }
+
+    /**
+     * Told once about the outcome of a scrape, from the thread completing it.
+     */
+    interface ScrapeListener {
+        void onSuccess();
+
+        /**
+         * @return whether the error document is forwarded
+         */
+        boolean onFailure();
+    }
+
+    private static class ScrapeThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metric-scraper-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
\ No newline at end of file
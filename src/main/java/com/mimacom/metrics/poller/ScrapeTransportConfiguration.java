@@ -0,0 +1,83 @@
+package com.mimacom.metrics.poller;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport of the scrapes: keep-alive connections pooled per instance, strict connect and read timeouts, and gzip
+ * compressed responses, which are decompressed while they are streamed into the documents.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Configuration
+public class ScrapeTransportConfiguration {
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient scrapeHttpClient(@Value("${metricpoller.poll.timeout.connect:1000}") int connectTimeout,
+                                                @Value("${metricpoller.poll.timeout.read:3000}") int readTimeout,
+                                                @Value("${metricpoller.poll.connections.max:200}") int maxConnections,
+                                                @Value("${metricpoller.poll.connections.perInstance:2}") int maxConnectionsPerInstance,
+                                                @Value("${metricpoller.poll.connections.keepAlive:30000}") long keepAliveMillis) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerInstance);
+        //connections idle for a while are checked before they are reused
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                //waiting for a pooled connection counts as connecting
+                .setConnectionRequestTimeout(connectTimeout)
+                .build();
+
+        //content compression is on by default: gzip is accepted and decompressed on the fly
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAlive(keepAliveMillis))
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .disableCookieManagement()
+                .build();
+    }
+
+    @Bean
+    public RestTemplate restTemplate(CloseableHttpClient scrapeHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(scrapeHttpClient));
+    }
+
+    /**
+     * Keeps connections as long as the instance allows, and at most for the given time.
+     */
+    private static ConnectionKeepAliveStrategy keepAlive(long keepAliveMillis) {
+        return (response, context) -> {
+            HeaderElementIterator elements = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (elements.hasNext()) {
+                HeaderElement element = elements.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, keepAliveMillis);
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+            return keepAliveMillis;
+        };
+    }
+}
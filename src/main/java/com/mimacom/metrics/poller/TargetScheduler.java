@@ -0,0 +1,223 @@
+package com.mimacom.metrics.poller;
+
+import com.mimacom.metrics.discovery.ServiceTopology;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per target scheduling, replacing the cron tick: every instance endpoint is scraped at its own interval, at a
+ * phase within the interval derived from the target itself, so the scrapes of the fleet are spread evenly instead of
+ * all starting in the same millisecond. A target is never scraped again while its previous scrape is still running.
+ * <p>
+ * After consecutive failures the circuit of the target opens: it is then only tried again after a backoff doubling
+ * with every further failure, and its failures are no longer forwarded as error documents. The first success closes
+ * the circuit again.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.schedule.mode", havingValue = "target")
+public class TargetScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TargetScheduler.class);
+    //stands for a scrape being submitted, which may complete before its handle is returned
+    private static final MetricPollerService.ScrapeHandle SUBMITTING = () -> { };
+
+    private final MetricPollerService poller;
+    private final ServiceTopology topology;
+    private final ForwarderMetrics metrics;
+    private final long intervalMillis;
+    private final Map<String, Long> endpointIntervals;
+    private final long deadlineMillis;
+    private final int failureThreshold;
+    private final long maxBackoffMillis;
+    private final long resolutionMillis;
+    private final long flushMillis;
+    private final ScheduledExecutorService timer;
+    private Map<String, Target> targets;
+    private ServiceTopology.Snapshot snapshot;
+    private long nextFlush;
+
+    @Autowired
+    public TargetScheduler(MetricPollerService poller,
+                           ServiceTopology topology,
+                           ForwarderMetrics metrics,
+                           @Value("${metricpoller.schedule.interval:5000}") long intervalMillis,
+                           @Value("${metricpoller.schedule.intervals:}") String[] endpointIntervals,
+                           @Value("${metricpoller.poll.deadline:4000}") long deadlineMillis,
+                           @Value("${metricpoller.schedule.circuit.failures:3}") int failureThreshold,
+                           @Value("${metricpoller.schedule.circuit.backoff.max:300000}") long maxBackoffMillis,
+                           @Value("${metricpoller.schedule.resolution:100}") long resolutionMillis,
+                           @Value("${metricpoller.schedule.flush:1000}") long flushMillis) {
+        this.poller = poller;
+        this.topology = topology;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+        this.endpointIntervals = new HashMap<>();
+        for (String endpointInterval : endpointIntervals) {
+            //<endpoint>=<interval ms>
+            int separator = endpointInterval.lastIndexOf('=');
+            if (separator > 0) {
+                this.endpointIntervals.put(endpointInterval.substring(0, separator).trim(), Long.parseLong(endpointInterval.substring(separator + 1).trim()));
+            }
+        }
+        this.deadlineMillis = deadlineMillis;
+        this.failureThreshold = failureThreshold;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.resolutionMillis = resolutionMillis;
+        this.flushMillis = flushMillis;
+        this.targets = new HashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "target-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        this.timer.scheduleWithFixedDelay(() -> {
+            try {
+                run(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOG.error("Error on scheduling the scrapes", e);
+            }
+        }, this.resolutionMillis, this.resolutionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * Starts the scrapes due by now, times out the ones past their deadline and flushes now and then.
+     */
+    void run(long now) {
+        ServiceTopology.Snapshot current = this.topology.getSnapshot();
+        if (current != this.snapshot) {
+            reconcile(current, now);
+        }
+        for (Target target : this.targets.values()) {
+            target.step(now);
+        }
+        if (now >= this.nextFlush) {
+            this.nextFlush = now + this.flushMillis;
+            this.poller.endOfTick();
+        }
+    }
+
+    int getTargets() {
+        return this.targets.size();
+    }
+
+    /**
+     * Keeps the targets still in the registry as they are, with their phase and circuit.
+     */
+    private void reconcile(ServiceTopology.Snapshot current, long now) {
+        Map<String, Target> reconciled = new HashMap<>();
+        for (List<ServiceInstance> instances : current.getServices().values()) {
+            for (ServiceInstance instance : instances) {
+                if (!this.poller.isOwned(instance)) {
+                    continue;
+                }
+                for (String endpoint : this.poller.getMetricsEndpoints()) {
+                    String key = instance.getServiceId() + ' ' + instance.getUri() + endpoint;
+                    Target target = this.targets.get(key);
+                    reconciled.put(key, target != null ? target : new Target(instance, endpoint, key, now));
+                }
+            }
+        }
+        this.targets = reconciled;
+        this.snapshot = current;
+    }
+
+    private final class Target implements MetricPollerService.ScrapeListener {
+        private final ServiceInstance instance;
+        private final String endpoint;
+        private final long interval;
+        private final long phase;
+        private MetricPollerService.ScrapeHandle running;
+        //the slot of the running or last scrape
+        private long slot;
+        private long deadline;
+        private long nextDue;
+        private int failures;
+
+        Target(ServiceInstance instance, String endpoint, String key, long now) {
+            this.instance = instance;
+            this.endpoint = endpoint;
+            this.interval = endpointIntervals.getOrDefault(endpoint, intervalMillis);
+            //stable for the target, whichever replica or restart schedules it
+            this.phase = Math.floorMod(key.hashCode() * 0x9E3779B97F4A7C15L, this.interval);
+            this.nextDue = nextSlot(now - 1);
+        }
+
+        synchronized void step(long now) {
+            if (this.running != null) {
+                if (now >= this.deadline) {
+                    //reports back through onFailure
+                    this.running.timeout();
+                }
+                return;
+            }
+            if (now < this.nextDue) {
+                return;
+            }
+            this.slot = this.nextDue;
+            this.nextDue = nextSlot(now);
+            this.deadline = now + Math.min(this.interval, deadlineMillis);
+            this.running = SUBMITTING;
+            MetricPollerService.ScrapeHandle handle = poller.submit(this.instance, this.endpoint, Math.min(this.interval, deadlineMillis), this);
+            if (this.running == SUBMITTING) {
+                this.running = handle;
+            }
+        }
+
+        @Override
+        public synchronized void onSuccess() {
+            this.running = null;
+            this.failures = 0;
+        }
+
+        @Override
+        public synchronized boolean onFailure() {
+            this.running = null;
+            this.failures++;
+            if (this.failures < failureThreshold) {
+                return true;
+            }
+            int doublings = Math.min(this.failures - failureThreshold + 1, 30);
+            long backoff = Math.min(this.interval << doublings, maxBackoffMillis);
+            this.nextDue = Math.max(this.nextDue, nextSlot(this.slot + backoff - 1));
+            if (this.failures == failureThreshold) {
+                LOG.warn("Circuit opened for endpoint {} of service instance: {} after {} failures", this.endpoint, this.instance.getServiceId(), this.failures);
+                metrics.circuitOpened(this.instance.getServiceId(), this.endpoint);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the first time after the given one at the phase of the target
+         */
+        private long nextSlot(long after) {
+            return after - Math.floorMod(after - this.phase, this.interval) + this.interval;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.mimacom.metrics.push;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mimacom.metrics.discovery.ServiceTopology;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.poller.BoundedInputStream;
+import com.mimacom.metrics.poller.MetricPollerService;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.SinkRing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound counterpart of the {@link MetricPollerService}: instances POST their metrics snapshots instead of being
+ * scraped, a single JSON object or a batch of them as NDJSON. The body is streamed through the same encoding as the
+ * scraped snapshots, with the same metadata, and handed over to the sinks.
+ * <p>
+ * While too many pushes are being read, too many bytes are waiting for the next bulk request, or the slowest sink
+ * is too many documents behind, pushes are refused with 429 so the instances back off instead of the forwarder
+ * running out of memory.
+ * <p>
+ * Only the known services may push, to the scraped endpoints, and the number of targets pushing is bounded, see
+ * {@link PushTargets}.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@RestController
+@ConditionalOnProperty(name = "metricpoller.push.enabled", havingValue = "true")
+public class MetricPushController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricPushController.class);
+    private static final String DEFAULT_ENDPOINT = "/push";
+
+    private final MetricPollerService poller;
+    private final SinkRing sinks;
+    private final BulkManager bulkManager;
+    private final ForwarderMetrics metrics;
+    private final PushTargets targets;
+    private final Semaphore concurrentPushes;
+    private final long maxPendingBytes;
+    private final long maxLag;
+    private final long maxRequestBytes;
+    private final long timeoutNanos;
+    private final String retryAfter;
+
+    @Autowired
+    public MetricPushController(MetricPollerService poller,
+                                SinkRing sinks,
+                                BulkManager bulkManager,
+                                ForwarderMetrics metrics,
+                                ServiceTopology topology,
+                                @Value("${metricpoller.push.services:}") String[] services,
+                                @Value("${metricpoller.endpoints}") String[] metricsEndpoints,
+                                @Value("${metricpoller.push.maxTargets:10000}") int maxTargets,
+                                @Value("${metricpoller.push.idle:900000}") long idleMillis,
+                                @Value("${metricpoller.push.concurrency:16}") int concurrency,
+                                @Value("${metricpoller.push.maxPendingBytes:33554432}") long maxPendingBytes,
+                                @Value("${metricpoller.push.maxLag:32768}") long maxLag,
+                                @Value("${metricpoller.push.maxRequestBytes:10485760}") long maxRequestBytes,
+                                @Value("${metricpoller.push.timeout:30000}") long timeoutMillis,
+                                @Value("${metricpoller.push.retryAfter:5}") int retryAfterSeconds) {
+        this.poller = poller;
+        this.sinks = sinks;
+        this.bulkManager = bulkManager;
+        this.metrics = metrics;
+        String[] endpoints = Arrays.copyOf(metricsEndpoints, metricsEndpoints.length + 1);
+        endpoints[metricsEndpoints.length] = DEFAULT_ENDPOINT;
+        this.targets = new PushTargets(topology, services, endpoints, maxTargets, idleMillis);
+        metrics.gauge("push.targets", this.targets::getTargets);
+        this.concurrentPushes = new Semaphore(concurrency);
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxLag = maxLag;
+        this.maxRequestBytes = maxRequestBytes;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.retryAfter = Integer.toString(retryAfterSeconds);
+    }
+
+    /**
+     * @param host     of the pushing instance, its address by default
+     * @param endpoint the snapshots are indexed as if scraped from
+     */
+    @PostMapping("${metricpoller.push.path:/push}/{serviceId}")
+    public ResponseEntity<String> push(@PathVariable String serviceId,
+                                       @RequestParam(required = false) String host,
+                                       @RequestParam(defaultValue = "0") int port,
+                                       @RequestParam(defaultValue = DEFAULT_ENDPOINT) String endpoint,
+                                       HttpServletRequest request) throws IOException {
+        if (host == null) {
+            host = request.getRemoteAddr();
+        }
+        PushTargets.Outcome outcome = this.targets.accept(serviceId, host, port, endpoint, System.currentTimeMillis());
+        if (outcome != PushTargets.Outcome.ACCEPTED) {
+            this.metrics.pushRejected();
+            LOG.warn("Push of service {} from {}:{} to {} refused: {}", serviceId, host, port, endpoint, outcome);
+            HttpHeaders headers = new HttpHeaders();
+            if (outcome == PushTargets.Outcome.TOO_MANY_TARGETS) {
+                headers.set(HttpHeaders.RETRY_AFTER, this.retryAfter);
+                return new ResponseEntity<>(headers, HttpStatus.TOO_MANY_REQUESTS);
+            }
+            return new ResponseEntity<>(outcome == PushTargets.Outcome.UNKNOWN_SERVICE ? HttpStatus.FORBIDDEN : HttpStatus.BAD_REQUEST);
+        }
+        if (this.bulkManager.getCachedBytes() >= this.maxPendingBytes || this.sinks.getLag() >= this.maxLag
+                || !this.concurrentPushes.tryAcquire()) {
+            this.metrics.pushRejected();
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, this.retryAfter);
+            return new ResponseEntity<>(headers, HttpStatus.TOO_MANY_REQUESTS);
+        }
+        ServiceInstance instance = new DefaultServiceInstance(serviceId, host, port, request.isSecure());
+        BulkBuffer document = this.sinks.acquire();
+        int documents = 0;
+        try {
+            BoundedInputStream body = new BoundedInputStream(request.getInputStream(), this.maxRequestBytes, System.nanoTime() + this.timeoutNanos);
+            JsonReader snapshots = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            //NDJSON is a sequence of top level values
+            snapshots.setLenient(true);
+            while (true) {
+                document.reset();
+                long timestamp = System.currentTimeMillis();
+                try {
+                    if (snapshots.peek() == JsonToken.END_DOCUMENT) {
+                        break;
+                    }
+                    if (!this.poller.writeDocument(snapshots, instance, endpoint, timestamp, document)) {
+                        continue;
+                    }
+                } catch (IOException | JsonParseException | IllegalStateException e) {
+                    LOG.warn("Invalid metrics pushed by service instance: {} at {}", serviceId, instance.getHost(), e);
+                    //the snapshots before the invalid one are kept
+                    return new ResponseEntity<>("Invalid snapshot after " + documents + " documents: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+                }
+                this.sinks.publish(MetricDocument.of(document, endpoint, timestamp));
+                //the buffer belongs to the ring now
+                document = this.sinks.acquire();
+                documents++;
+            }
+            return new ResponseEntity<>(HttpStatus.ACCEPTED);
+        } finally {
+            this.metrics.pushed(documents);
+            this.sinks.release(document);
+            this.concurrentPushes.release();
+        }
+    }
+}
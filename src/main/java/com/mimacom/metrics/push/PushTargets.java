@@ -0,0 +1,94 @@
+package com.mimacom.metrics.push;
+
+import com.mimacom.metrics.discovery.ServiceTopology;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * The targets pushes are accepted for. Every service, host and endpoint pushed gets state of its own in the filters,
+ * the delta and the rollup, so only the allowed services, or else the ones known to the registry, may push to the
+ * scraped endpoints, and the number of targets pushing is bounded.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+class PushTargets {
+
+    enum Outcome {
+        ACCEPTED, UNKNOWN_SERVICE, UNKNOWN_ENDPOINT, TOO_MANY_TARGETS
+    }
+
+    private final ServiceTopology topology;
+    private final Set<String> services;
+    private final Set<String> endpoints;
+    private final int maxTargets;
+    private final long idleMillis;
+    //last push of every target, in ms
+    private final ConcurrentMap<String, Long> targets;
+
+    /**
+     * @param services  allowed to push, in any case. If empty, the services of the registry
+     * @param endpoints the snapshots may be pushed as if scraped from
+     */
+    PushTargets(ServiceTopology topology, String[] services, String[] endpoints, int maxTargets, long idleMillis) {
+        this.topology = topology;
+        this.services = Arrays.stream(services).map(String::trim).filter(service -> !service.isEmpty())
+                .map(String::toLowerCase).collect(Collectors.toSet());
+        this.endpoints = Arrays.stream(endpoints).map(String::trim).filter(endpoint -> !endpoint.isEmpty()).collect(Collectors.toSet());
+        this.maxTargets = maxTargets;
+        this.idleMillis = idleMillis;
+        this.targets = new ConcurrentHashMap<>();
+    }
+
+    Outcome accept(String serviceId, String host, int port, String endpoint, long now) {
+        if (!isKnown(serviceId)) {
+            return Outcome.UNKNOWN_SERVICE;
+        }
+        if (!this.endpoints.contains(endpoint)) {
+            return Outcome.UNKNOWN_ENDPOINT;
+        }
+        String target = serviceId.toLowerCase() + ' ' + host + ':' + port + endpoint;
+        if (this.targets.replace(target, now) != null) {
+            return Outcome.ACCEPTED;
+        }
+        if (this.targets.size() >= this.maxTargets) {
+            evictIdle(now);
+            //a few more may get in while pushed concurrently, at most one per concurrent push
+            if (this.targets.size() >= this.maxTargets) {
+                return Outcome.TOO_MANY_TARGETS;
+            }
+        }
+        this.targets.put(target, now);
+        return Outcome.ACCEPTED;
+    }
+
+    int getTargets() {
+        return this.targets.size();
+    }
+
+    private boolean isKnown(String serviceId) {
+        if (!this.services.isEmpty()) {
+            return this.services.contains(serviceId.toLowerCase());
+        }
+        for (String service : this.topology.getSnapshot().getServices().keySet()) {
+            if (service.equalsIgnoreCase(serviceId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = this.targets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() > this.idleMillis) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mimacom.metrics.recent;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Answers the recent points of a metric from the {@link RecentMetricStore}, e.g.
+ * <code>GET /recent/ORDERS?metric=heap.used&amp;window=60000&amp;aggregate=true</code>, for the dashboards and the
+ * autoscaler polling the latest values.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@RestController
+@ConditionalOnProperty(name = "metricpoller.recent.enabled", havingValue = "true")
+public class RecentMetricController {
+
+    private final RecentMetricStore store;
+
+    @Autowired
+    public RecentMetricController(RecentMetricStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @param metric    key of the metric as scraped, e.g. heap.used
+     * @param instance  host:port, every instance of the service by default
+     * @param endpoint  the metric was scraped from or pushed to, every endpoint by default
+     * @param window    ms back from now, the whole window of the store by default
+     * @param aggregate whether to answer the min, max, avg and last of every instance instead of the points
+     * @return one entry per instance and endpoint holding any point in the window
+     */
+    @GetMapping("${metricpoller.recent.path:/recent}/{serviceId}")
+    public List<?> query(@PathVariable String serviceId,
+                         @RequestParam String metric,
+                         @RequestParam(required = false) String instance,
+                         @RequestParam(required = false) String endpoint,
+                         @RequestParam(defaultValue = "0") long window,
+                         @RequestParam(defaultValue = "false") boolean aggregate) {
+        long windowMillis = window > 0 ? Math.min(window, this.store.getWindowMillis()) : this.store.getWindowMillis();
+        List<RecentSeries> series = this.store.query(serviceId, metric, instance, endpoint, System.currentTimeMillis() - windowMillis);
+        if (aggregate) {
+            return series.stream().map(RecentSeries::aggregate).collect(Collectors.toList());
+        }
+        return series;
+    }
+}
@@ -0,0 +1,391 @@
+package com.mimacom.metrics.recent;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.MetricSink;
+import com.mimacom.metrics.sink.SinkSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest points of every numeric metric of every instance and endpoint in memory, so the recent window is
+ * answered without querying Elasticsearch. As a sink it sees the documents of the scrapes and the pushes alike.
+ * <p>
+ * The points are kept off heap in a single slab of fixed size slots, one slot per metric of an instance holding a
+ * ring of timestamps and a ring of values. Only the sink thread writes, the queries read concurrently and drop the
+ * points overwritten while they were reading. Every instance maps the names of its metrics to their slots. The
+ * instances and the metrics which were not heard of for a whole window give their slots back, and at most
+ * maxInstances instances are kept, the documents of further ones are left out.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.recent.enabled", havingValue = "true")
+public class RecentMetricStore implements MetricSink {
+
+    private static final String FIELD_SERVICE_ID = MessageBuilder.fieldName("serviceId");
+    private static final String FIELD_HOST = MessageBuilder.fieldName("host");
+    private static final String FIELD_PORT = MessageBuilder.fieldName("port");
+    private static final int POINT_BYTES = Long.BYTES + Double.BYTES;
+
+    private final ForwarderMetrics metrics;
+    private final long windowMillis;
+    private final int points;
+    private final int maxInstances;
+    //points of a slot, one more than answered so a point can be written while the others are read
+    private final int capacity;
+    private final SinkSettings settings;
+    private final ByteBuffer slab;
+    //written by the sink thread only
+    private final Deque<Integer> freeSlots;
+    private final DocumentReader source;
+    //the metrics of the document being written
+    private final List<String> keys;
+    private double[] values;
+    //by service id, by host:port and endpoint
+    private final Map<String, Map<String, Instance>> services;
+    private volatile int usedSlots;
+    private volatile int instanceCount;
+    private long lastSweep;
+
+    @Autowired
+    public RecentMetricStore(ForwarderMetrics metrics,
+                             @Value("${metricpoller.recent.window:300000}") long windowMillis,
+                             @Value("${metricpoller.recent.points:120}") int points,
+                             @Value("${metricpoller.recent.maxSeries:10000}") int maxSeries,
+                             @Value("${metricpoller.recent.maxInstances:1000}") int maxInstances) {
+        if ((long) maxSeries * (points + 1) * POINT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The recent metrics do not fit into 2GB: " + maxSeries + " series of " + points + " points");
+        }
+        this.metrics = metrics;
+        this.windowMillis = windowMillis;
+        this.points = points;
+        this.maxInstances = maxInstances;
+        this.capacity = points + 1;
+        //the end of every tick sweeps the instances gone
+        this.settings = new SinkSettings(0, 0, "latest");
+        this.slab = ByteBuffer.allocateDirect(maxSeries * this.capacity * POINT_BYTES);
+        this.freeSlots = new ArrayDeque<>(maxSeries);
+        for (int slot = 0; slot < maxSeries; slot++) {
+            this.freeSlots.addLast(slot);
+        }
+        this.source = new DocumentReader();
+        this.keys = new ArrayList<>();
+        this.values = new double[64];
+        this.services = new ConcurrentHashMap<>();
+        this.lastSweep = System.currentTimeMillis();
+        metrics.gauge("recent.series", () -> this.usedSlots);
+        metrics.gauge("recent.instances", () -> this.instanceCount);
+    }
+
+    @Override
+    public String getName() {
+        return "recent";
+    }
+
+    @Override
+    public SinkSettings getSettings() {
+        return this.settings;
+    }
+
+    @Override
+    public void write(MetricDocument document) throws IOException {
+        this.source.reset(document.getSource(), document.getLength());
+        JsonReader reader = new JsonReader(this.source);
+        //the metadata is written after the metrics, so the metrics are collected first
+        List<String> keys = this.keys;
+        keys.clear();
+        String serviceId = null;
+        String host = null;
+        String port = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            String key;
+            JsonToken token = reader.peek();
+            if (FIELD_SERVICE_ID.equals(field) && token == JsonToken.STRING) {
+                serviceId = reader.nextString();
+            } else if (FIELD_HOST.equals(field) && token == JsonToken.STRING) {
+                host = reader.nextString();
+            } else if (FIELD_PORT.equals(field) && token == JsonToken.NUMBER) {
+                port = reader.nextString();
+            } else if (token == JsonToken.NUMBER && (key = MessageBuilder.metricKey(field)) != null) {
+                if (keys.size() == this.values.length) {
+                    this.values = Arrays.copyOf(this.values, keys.size() * 2);
+                }
+                this.values[keys.size()] = reader.nextDouble();
+                keys.add(key);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (serviceId == null || host == null || keys.isEmpty()) {
+            return;
+        }
+
+        String name = host + ":" + port;
+        String key = name + document.getEndpoint();
+        Map<String, Instance> instances = this.services.get(serviceId);
+        Instance instance = instances != null ? instances.get(key) : null;
+        if (instance == null) {
+            if (this.instanceCount >= this.maxInstances) {
+                this.metrics.recentPointsRejected(keys.size());
+                return;
+            }
+            instance = new Instance(name, document.getEndpoint());
+            this.services.computeIfAbsent(serviceId, s -> new ConcurrentHashMap<>()).put(key, instance);
+            this.instanceCount++;
+        }
+        long timestamp = document.getTimestamp();
+        int rejected = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            Series series = instance.series(keys.get(i));
+            if (series == null) {
+                rejected++;
+                continue;
+            }
+            append(series, timestamp, this.values[i]);
+        }
+        instance.lastTimestamp = Math.max(instance.lastTimestamp, timestamp);
+        if (rejected > 0) {
+            this.metrics.recentPointsRejected(rejected);
+        }
+    }
+
+    @Override
+    public void flush() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastSweep < this.windowMillis) {
+            return;
+        }
+        this.lastSweep = now;
+        for (Iterator<Map<String, Instance>> services = this.services.values().iterator(); services.hasNext(); ) {
+            Map<String, Instance> instances = services.next();
+            for (Iterator<Instance> gone = instances.values().iterator(); gone.hasNext(); ) {
+                Instance instance = gone.next();
+                if (now - instance.lastTimestamp > this.windowMillis) {
+                    gone.remove();
+                    instance.release();
+                    this.instanceCount--;
+                } else {
+                    instance.releaseSince(now - this.windowMillis);
+                }
+            }
+            if (instances.isEmpty()) {
+                services.remove();
+            }
+        }
+    }
+
+    /**
+     * @param instance host:port, null for every instance of the service
+     * @param endpoint the metric was scraped from or pushed to, null for every endpoint
+     * @param from     epoch ms of the oldest point answered
+     * @return the series holding any point since then
+     */
+    public List<RecentSeries> query(String serviceId, String metric, String instance, String endpoint, long from) {
+        Map<String, Instance> instances = this.services.get(serviceId);
+        if (instances == null) {
+            return Collections.emptyList();
+        }
+        List<RecentSeries> answer = new ArrayList<>();
+        for (Instance candidate : instances.values()) {
+            if (instance != null && !instance.equals(candidate.name) || endpoint != null && !endpoint.equals(candidate.endpoint)) {
+                continue;
+            }
+            Series series = candidate.series.get(metric);
+            if (series != null) {
+                RecentSeries points = read(series, candidate, metric, from);
+                if (points != null) {
+                    answer.add(points);
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * @return the ms of points answered by default
+     */
+    public long getWindowMillis() {
+        return this.windowMillis;
+    }
+
+    private void append(Series series, long timestamp, double value) {
+        long count = series.count;
+        int index = (int) (count % this.capacity);
+        this.slab.putLong(timestampOffset(series, index), timestamp);
+        this.slab.putDouble(valueOffset(series, index), value);
+        //publishes the point to the readers
+        series.count = count + 1;
+        series.lastTimestamp = timestamp;
+    }
+
+    private RecentSeries read(Series series, Instance instance, String metric, long from) {
+        long count = series.count;
+        long first = Math.max(0, count - this.points);
+        int n = (int) (count - first);
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            int index = (int) ((first + i) % this.capacity);
+            timestamps[i] = this.slab.getLong(timestampOffset(series, index));
+            values[i] = this.slab.getDouble(valueOffset(series, index));
+        }
+        if (series.released) {
+            //the slot may hold another series already
+            return null;
+        }
+        //the points written meanwhile, and the one being written, overwrote the oldest ones
+        long valid = series.count - this.points;
+        int start = (int) Math.max(0, valid - first);
+        while (start < n && timestamps[start] < from) {
+            start++;
+        }
+        if (start >= n) {
+            return null;
+        }
+        return new RecentSeries(instance.name, instance.endpoint, metric, Arrays.copyOfRange(timestamps, start, n), Arrays.copyOfRange(values, start, n));
+    }
+
+    private int timestampOffset(Series series, int index) {
+        return (series.slot * this.capacity + index) * POINT_BYTES;
+    }
+
+    private int valueOffset(Series series, int index) {
+        return timestampOffset(series, index) + Long.BYTES;
+    }
+
+    /**
+     * The series of the metrics of one endpoint of one instance, by metric name.
+     */
+    private final class Instance {
+        private final String name;
+        private final String endpoint;
+        private final Map<String, Series> series;
+        private volatile long lastTimestamp;
+
+        Instance(String name, String endpoint) {
+            this.name = name;
+            this.endpoint = endpoint;
+            this.series = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @return null once the slab is full
+         */
+        Series series(String metric) {
+            Series series = this.series.get(metric);
+            if (series != null) {
+                return series;
+            }
+            Integer slot = freeSlots.pollFirst();
+            if (slot == null) {
+                return null;
+            }
+            series = new Series(slot);
+            this.series.put(metric, series);
+            usedSlots++;
+            return series;
+        }
+
+        /**
+         * Gives back the slots of the metrics without any point since the timestamp.
+         */
+        void releaseSince(long timestamp) {
+            for (Iterator<Series> gone = this.series.values().iterator(); gone.hasNext(); ) {
+                Series series = gone.next();
+                if (series.lastTimestamp < timestamp) {
+                    gone.remove();
+                    release(series);
+                }
+            }
+        }
+
+        void release() {
+            this.series.values().forEach(this::release);
+        }
+
+        private void release(Series series) {
+            series.released = true;
+            freeSlots.addLast(series.slot);
+            usedSlots--;
+        }
+    }
+
+    private static final class Series {
+        private final int slot;
+        private volatile long count;
+        private volatile boolean released;
+        //written by the sink thread only
+        private long lastTimestamp;
+
+        Series(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Reads the documents one after the other, decoded into the same characters.
+     */
+    private static final class DocumentReader extends Reader {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(16 * 1024);
+        private int position;
+
+        void reset(byte[] source, int length) {
+            //UTF-8 never takes fewer bytes than chars
+            if (this.chars.capacity() < length) {
+                this.chars = CharBuffer.allocate(length);
+            }
+            this.chars.clear();
+            this.decoder.reset();
+            ByteBuffer bytes = ByteBuffer.wrap(source, 0, length);
+            this.decoder.decode(bytes, this.chars, true);
+            this.decoder.flush(this.chars);
+            this.chars.flip();
+            this.position = 0;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            int remaining = this.chars.limit() - this.position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = Math.min(length, remaining);
+            System.arraycopy(this.chars.array(), this.position, buffer, offset, read);
+            this.position += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.mimacom.metrics.recent;
+
+/**
+ * The recent points of one metric of one endpoint of one instance, oldest first, as answered by the
+ * {@link RecentMetricController}.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public class RecentSeries {
+
+    private final String instance;
+    private final String endpoint;
+    private final String metric;
+    private final long[] timestamps;
+    private final double[] values;
+
+    public RecentSeries(String instance, String endpoint, String metric, long[] timestamps, double[] values) {
+        this.instance = instance;
+        this.endpoint = endpoint;
+        this.metric = metric;
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    /**
+     * @return host:port
+     */
+    public String getInstance() {
+        return this.instance;
+    }
+
+    public String getEndpoint() {
+        return this.endpoint;
+    }
+
+    public String getMetric() {
+        return this.metric;
+    }
+
+    /**
+     * @return epoch ms of the points
+     */
+    public long[] getTimestamps() {
+        return this.timestamps;
+    }
+
+    public double[] getValues() {
+        return this.values;
+    }
+
+    public Aggregate aggregate() {
+        return new Aggregate(this);
+    }
+
+    /**
+     * Summary of the points, for the callers which only need the figures instead of the points.
+     */
+    public static class Aggregate {
+        private final String instance;
+        private final String endpoint;
+        private final String metric;
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double avg;
+        private final double last;
+        private final long lastTimestamp;
+
+        Aggregate(RecentSeries series) {
+            this.instance = series.instance;
+            this.endpoint = series.endpoint;
+            this.metric = series.metric;
+            this.count = series.values.length;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (double value : series.values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+            //a series is never answered without points
+            this.min = min;
+            this.max = max;
+            this.avg = sum / this.count;
+            this.last = series.values[this.count - 1];
+            this.lastTimestamp = series.timestamps[this.count - 1];
+        }
+
+        public String getInstance() {
+            return this.instance;
+        }
+
+        public String getEndpoint() {
+            return this.endpoint;
+        }
+
+        public String getMetric() {
+            return this.metric;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        public double getMin() {
+            return this.min;
+        }
+
+        public double getMax() {
+            return this.max;
+        }
+
+        public double getAvg() {
+            return this.avg;
+        }
+
+        public double getLast() {
+            return this.last;
+        }
+
+        public long getLastTimestamp() {
+            return this.lastTimestamp;
+        }
+    }
+}
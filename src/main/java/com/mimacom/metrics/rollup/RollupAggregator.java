@@ -0,0 +1,297 @@
+package com.mimacom.metrics.rollup;
+
+import com.google.gson.stream.JsonWriter;
+import com.mimacom.metrics.discovery.TopologyChangedEvent;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.elasticsearch.util.KeyPatterns;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MetricKeys;
+import com.mimacom.metrics.elasticsearch.util.MetricTransform;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.SinkRing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rollup mode: instead of a document per scrape, the numeric metrics of every instance endpoint are aggregated over
+ * a window, and a single document per window is forwarded with the min, max, avg, last and count of each metric as
+ * {@code <metric>.min.value} and so on, timestamped with the start of the window. The metrics matching the raw
+ * patterns, and the non numeric values, are still forwarded with every scrape.
+ * <p>
+ * The values of a scrape are staged and only aggregated once the scrape was completed and forwarded, partial, failed
+ * and timed out scrapes leave the window untouched.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.rollup.enabled", havingValue = "true")
+public class RollupAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RollupAggregator.class);
+    private static final String WINDOW_KEY = "rollup.window";
+
+    private final SinkRing sinks;
+    private final IndexManager indexManager;
+    private final long windowMillis;
+    private final long idleMillis;
+    private final KeyPatterns raw;
+    private final ConcurrentMap<String, Window> windows;
+    private final ConcurrentMap<String, String> names;
+
+    @Autowired
+    public RollupAggregator(SinkRing sinks,
+                            IndexManager indexManager,
+                            @Value("${metricpoller.rollup.window:60000}") long windowMillis,
+                            @Value("${metricpoller.rollup.raw:}") String[] raw,
+                            @Value("${metricpoller.rollup.idle:900000}") long idleMillis) {
+        this.sinks = sinks;
+        this.indexManager = indexManager;
+        this.windowMillis = windowMillis;
+        this.idleMillis = idleMillis;
+        this.raw = new KeyPatterns(raw);
+        this.windows = new ConcurrentHashMap<>();
+        this.names = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the transform of the scrape, or null while another scrape of the same endpoint is still running, the
+     * scrape is then forwarded complete
+     */
+    public MetricTransform begin(ServiceInstance instance, String endpoint, long timestamp) {
+        String key = targetKey(instance, endpoint);
+        Window window;
+        while (true) {
+            window = this.windows.computeIfAbsent(key, k -> new Window(endpoint, timestamp));
+            boolean claimed = window.busy.compareAndSet(false, true);
+            //the window may have been forgotten between the lookup and the claim, it would never be forwarded
+            if (this.windows.get(key) == window) {
+                if (!claimed) {
+                    return null;
+                }
+                break;
+            }
+            if (claimed) {
+                window.busy.set(false);
+            }
+        }
+        long start = timestamp - timestamp % this.windowMillis;
+        if (window.start != start) {
+            //the first scrape of a new window closes the previous one
+            close(window);
+            window.start = start;
+        }
+        window.instance = instance;
+        window.timestamp = timestamp;
+        window.scrape++;
+        window.completed = false;
+        window.keys.rewind();
+        return window;
+    }
+
+    /**
+     * Forwards the windows which ended by now. Windows which saw no scrape for the idle time are forgotten, their
+     * instance is gone. Targets scraped less often than the window period keep theirs meanwhile.
+     */
+    public void closeWindows(long now) {
+        Iterator<Window> iterator = this.windows.values().iterator();
+        while (iterator.hasNext()) {
+            Window window = iterator.next();
+            if (window.start + this.windowMillis > now || !window.busy.compareAndSet(false, true)) {
+                continue;
+            }
+            try {
+                if (!close(window) && now - window.lastTimestamp > this.idleMillis) {
+                    iterator.remove();
+                }
+            } finally {
+                window.busy.set(false);
+            }
+        }
+    }
+
+    /**
+     * Forwards what was aggregated so far from every endpoint of the instance, and forgets it.
+     */
+    @EventListener
+    public void onTopologyChanged(TopologyChangedEvent event) {
+        for (ServiceInstance instance : event.getRemoved()) {
+            String prefix = targetKey(instance, "");
+            Iterator<Map.Entry<String, Window>> iterator = this.windows.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Window> entry = iterator.next();
+                Window window = entry.getValue();
+                //a window still being scraped is left to the end of the tick
+                if (entry.getKey().startsWith(prefix) && window.busy.compareAndSet(false, true)) {
+                    close(window);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int getTrackedTargets() {
+        return this.windows.size();
+    }
+
+    private static String targetKey(ServiceInstance instance, String endpoint) {
+        return instance.getServiceId() + ' ' + instance.getUri() + endpoint;
+    }
+
+    /**
+     * @return whether the window held any metric
+     */
+    private boolean close(Window window) {
+        boolean scraped = window.scrapes > 0;
+        if (scraped) {
+            BulkBuffer document = this.sinks.acquire();
+            try {
+                window.write(document);
+                this.sinks.publish(MetricDocument.of(document, window.endpoint, window.start));
+            } catch (IOException e) {
+                this.sinks.release(document);
+                LOG.error("Error on forwarding the rollup of endpoint {} for service instance: {}", window.endpoint, window.instance.getServiceId(), e);
+            }
+        }
+        window.reset();
+        return scraped;
+    }
+
+    /**
+     * Aggregates of a single instance endpoint, in arrays indexed by the slots of the metrics.
+     */
+    private final class Window implements MetricTransform {
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final String endpoint;
+        private final MetricKeys keys = new MetricKeys(names, 64);
+        private ServiceInstance instance;
+        private long start = Long.MIN_VALUE;
+        private int scrapes;
+        //of the scrape in progress
+        private int scrape;
+        private long timestamp;
+        private boolean completed;
+        //of the last scrape aggregated
+        private volatile long lastTimestamp;
+        private double[] staged = new double[64];
+        private int[] stagedScrape = new int[64];
+        private double[] min = new double[64];
+        private double[] max = new double[64];
+        private double[] sum = new double[64];
+        private double[] last = new double[64];
+        private int[] count = new int[64];
+        private boolean[] passThrough = new boolean[64];
+        private int initialized;
+
+        Window(String endpoint, long timestamp) {
+            this.endpoint = endpoint;
+            this.lastTimestamp = timestamp;
+        }
+
+        @Override
+        public boolean accept(String key, String value) {
+            double current;
+            try {
+                current = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return true;
+            }
+            int slot = slotOf(key);
+            this.staged[slot] = current;
+            this.stagedScrape[slot] = this.scrape;
+            return this.passThrough[slot];
+        }
+
+        @Override
+        public void complete(JsonWriter document) {
+            this.completed = true;
+        }
+
+        @Override
+        public void release(boolean commit) {
+            if (this.completed && commit) {
+                for (int slot = 0; slot < this.keys.size(); slot++) {
+                    if (this.stagedScrape[slot] == this.scrape) {
+                        aggregate(slot, this.staged[slot]);
+                    }
+                }
+                this.scrapes++;
+                this.lastTimestamp = this.timestamp;
+            }
+            this.busy.set(false);
+        }
+
+        private void aggregate(int slot, double value) {
+            if (this.count[slot]++ == 0) {
+                this.min[slot] = value;
+                this.max[slot] = value;
+                this.sum[slot] = value;
+            } else {
+                this.min[slot] = Math.min(this.min[slot], value);
+                this.max[slot] = Math.max(this.max[slot], value);
+                this.sum[slot] += value;
+            }
+            this.last[slot] = value;
+        }
+
+        void write(BulkBuffer document) throws IOException {
+            JsonWriter writer = new JsonWriter(document.asWriter());
+            writer.beginObject();
+            for (int slot = 0; slot < this.keys.size(); slot++) {
+                int count = this.count[slot];
+                if (count == 0) {
+                    continue;
+                }
+                String key = this.keys.getKey(slot);
+                writer.name(MessageBuilder.fieldName(key + ".min")).value(this.min[slot]);
+                writer.name(MessageBuilder.fieldName(key + ".max")).value(this.max[slot]);
+                writer.name(MessageBuilder.fieldName(key + ".avg")).value(this.sum[slot] / count);
+                writer.name(MessageBuilder.fieldName(key + ".last")).value(this.last[slot]);
+                writer.name(MessageBuilder.fieldName(key + ".count")).value(count);
+            }
+            writer.name(MessageBuilder.fieldName(WINDOW_KEY)).value(windowMillis);
+            MessageBuilder.writeMetadata(writer, this.endpoint, this.instance, this.start, indexManager.getSchema());
+            writer.endObject();
+            writer.flush();
+        }
+
+        void reset() {
+            Arrays.fill(this.count, 0, this.keys.size(), 0);
+            this.scrapes = 0;
+        }
+
+        private int slotOf(String key) {
+            int slot = this.keys.slotOf(key);
+            if (slot == this.count.length) {
+                int capacity = this.keys.capacity();
+                this.min = Arrays.copyOf(this.min, capacity);
+                this.max = Arrays.copyOf(this.max, capacity);
+                this.sum = Arrays.copyOf(this.sum, capacity);
+                this.last = Arrays.copyOf(this.last, capacity);
+                this.count = Arrays.copyOf(this.count, capacity);
+                this.passThrough = Arrays.copyOf(this.passThrough, capacity);
+                this.staged = Arrays.copyOf(this.staged, capacity);
+                this.stagedScrape = Arrays.copyOf(this.stagedScrape, capacity);
+            }
+            if (slot == this.initialized) {
+                this.passThrough[slot] = raw.matches(key);
+                this.initialized++;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.mimacom.metrics.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Archives the raw documents locally, one per line, into NDJSON files rolled over at a maximum size. Only the newest
+ * files are kept.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.sink.file.enabled", havingValue = "true")
+public class FileSink implements MetricSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSink.class);
+    private static final String FILE_PREFIX = "metrics-";
+    private static final String FILE_SUFFIX = ".ndjson";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final SinkSettings settings;
+    private final Deque<File> files;
+    private OutputStream out;
+    private long fileBytes;
+    private long fileMillis;
+
+    @Autowired
+    public FileSink(@Value("${metricpoller.sink.file.directory:archive}") String directory,
+                    @Value("${metricpoller.sink.file.maxFileBytes:134217728}") long maxFileBytes,
+                    @Value("${metricpoller.sink.file.maxFiles:24}") int maxFiles,
+                    @Value("${metricpoller.sink.file.batch:1000}") int batch,
+                    @Value("${metricpoller.sink.file.linger:1000}") long lingerMillis,
+                    @Value("${metricpoller.sink.file.overflow:skip}") String overflow) throws IOException {
+        this.directory = new File(directory);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.settings = new SinkSettings(batch, lingerMillis, overflow);
+        this.files = new ArrayDeque<>();
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create the archive directory " + this.directory.getAbsolutePath());
+        }
+        //the files of a previous run count against the limit as well
+        File[] existing = this.directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (existing != null) {
+            Arrays.sort(existing);
+            this.files.addAll(Arrays.asList(existing));
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "file";
+    }
+
+    @Override
+    public SinkSettings getSettings() {
+        return this.settings;
+    }
+
+    @Override
+    public void write(MetricDocument document) throws IOException {
+        if (this.out == null || this.fileBytes >= this.maxFileBytes) {
+            roll();
+        }
+        this.out.write(document.getSource(), 0, document.getLength());
+        this.out.write('\n');
+        this.fileBytes += document.getLength() + 1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.out != null) {
+            this.out.flush();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        //the files sort by name as they were created, even when rolled over again within the same millisecond
+        long millis = Math.max(System.currentTimeMillis(), this.fileMillis + 1);
+        File file = new File(this.directory, FILE_PREFIX + millis + FILE_SUFFIX);
+        while (file.exists()) {
+            file = new File(this.directory, FILE_PREFIX + ++millis + FILE_SUFFIX);
+        }
+        this.fileMillis = millis;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        this.fileBytes = 0;
+        this.files.addLast(file);
+        while (this.files.size() > this.maxFiles) {
+            File oldest = this.files.removeFirst();
+            if (!oldest.delete()) {
+                LOG.warn("Cannot delete the archive file {}", oldest.getAbsolutePath());
+            }
+        }
+    }
+}
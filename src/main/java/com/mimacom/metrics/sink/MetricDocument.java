@@ -0,0 +1,67 @@
+package com.mimacom.metrics.sink;
+
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A document as handed over to the sinks: its JSON source, encoded once and shared by every sink, never modified.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public final class MetricDocument {
+
+    private final byte[] source;
+    private final int length;
+    private final String endpoint;
+    private final long timestamp;
+    //the pooled buffer holding the source, if any
+    private final BulkBuffer buffer;
+
+    public MetricDocument(byte[] source, String endpoint, long timestamp) {
+        this(source, source.length, endpoint, timestamp, null);
+    }
+
+    private MetricDocument(byte[] source, int length, String endpoint, long timestamp, BulkBuffer buffer) {
+        this.source = source;
+        this.length = length;
+        this.endpoint = endpoint;
+        this.timestamp = timestamp;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Wraps the buffer without copying it. The buffer is meant to come from {@link SinkRing#acquire()}, once published
+     * it belongs to the ring, which gives it back to its pool when every sink wrote the document.
+     */
+    public static MetricDocument of(BulkBuffer document, String endpoint, long timestamp) {
+        return new MetricDocument(document.array(), document.size(), endpoint, timestamp, document);
+    }
+
+    public static MetricDocument of(String document, String endpoint, long timestamp) {
+        return new MetricDocument(document.getBytes(StandardCharsets.UTF_8), endpoint, timestamp);
+    }
+
+    /**
+     * @return the UTF-8 encoded JSON, on a single line, in the first {@link #getLength()} bytes. Not to be modified
+     */
+    public byte[] getSource() {
+        return this.source;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    public String getEndpoint() {
+        return this.endpoint;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    BulkBuffer getBuffer() {
+        return this.buffer;
+    }
+}
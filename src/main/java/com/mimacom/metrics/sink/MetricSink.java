@@ -0,0 +1,27 @@
+package com.mimacom.metrics.sink;
+
+import java.io.IOException;
+
+/**
+ * Destination of the forwarded documents. Every sink is a component of its own, fed by the {@link SinkRing} from a
+ * thread of its own, so it is only ever called by that thread and may take its time: a slow sink only falls behind,
+ * it neither holds up the scrapes nor the other sinks.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public interface MetricSink {
+
+    /**
+     * @return the name of the sink in its settings, <code>metricpoller.sink.&lt;name&gt;</code>, and metrics
+     */
+    String getName();
+
+    SinkSettings getSettings();
+
+    void write(MetricDocument document) throws IOException;
+
+    /**
+     * Ends a batch: the documents written so far are to be delivered.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,364 @@
+package com.mimacom.metrics.sink;
+
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the documents over from the scrapes to the sinks. The documents are published into a ring of slots, numbered
+ * by an ever increasing sequence, and every sink reads them from its own position in the ring with a thread of its
+ * own. A sink falling a whole ring behind either holds the publishers up until it read the slot they are about to
+ * overwrite, with the {@link SinkSettings.Overflow#BLOCK} policy, or finds its next slot overwritten and goes on as
+ * its overflow policy says, counting the documents it lost. The last sink done with a slot clears its document, so the
+ * ring only holds on to the documents some sink has yet to write.
+ * <p>
+ * The documents are encoded into buffers taken from the pool of the ring with {@link #acquire()}, and published
+ * without being copied. The last sink done with a document gives its buffer back to the pool.
+ * <p>
+ * Besides the documents, the end of a polling tick is published, on which every sink is flushed.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+public class SinkRing {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SinkRing.class);
+    //the longest a consumer parks without being signalled, in case a signal got lost
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SHUTDOWN_MILLIS = 5000;
+    //how long a publisher held up by a blocking sink parks before looking again
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int DOCUMENT_BUFFER_CAPACITY = 16 * 1024;
+    //buffers beyond the documents usually in flight are left to the garbage collector
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final AtomicReferenceArray<Slot> slots;
+    private final int mask;
+    private final AtomicLong next;
+    private final List<Consumer> consumers;
+    //the consumers the publishers wait for
+    private final List<Consumer> blocking;
+    private final ForwarderMetrics metrics;
+    private final Queue<BulkBuffer> bufferPool;
+    private volatile boolean running;
+
+    @Autowired
+    public SinkRing(Optional<List<MetricSink>> sinks,
+                    ForwarderMetrics metrics,
+                    @Value("${metricpoller.sink.ring.capacity:65536}") int capacity) {
+        //power of two, so the slot of a sequence is found with a mask
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1) << 1);
+        this.slots = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+        this.next = new AtomicLong();
+        this.running = true;
+        List<Consumer> consumers = new ArrayList<>();
+        for (MetricSink sink : sinks.orElse(Collections.emptyList())) {
+            Consumer consumer = new Consumer(sink, metrics);
+            metrics.gauge("sink." + sink.getName() + ".lag", consumer::getLag);
+            consumers.add(consumer);
+        }
+        this.consumers = consumers;
+        this.blocking = new ArrayList<>();
+        for (Consumer consumer : consumers) {
+            if (consumer.settings.getOverflow() == SinkSettings.Overflow.BLOCK) {
+                this.blocking.add(consumer);
+            }
+        }
+        this.metrics = metrics;
+        this.bufferPool = new ConcurrentLinkedQueue<>();
+        this.consumers.forEach(consumer -> consumer.thread.start());
+        LOG.info("Forwarding to the sinks {}", this.consumers.stream().map(consumer -> consumer.sink.getName()).toArray());
+    }
+
+    /**
+     * @return an empty buffer to encode a document into, to be published with {@link MetricDocument#of(BulkBuffer,
+     * String, long)} or given back with {@link #release(BulkBuffer)}
+     */
+    public BulkBuffer acquire() {
+        BulkBuffer buffer = this.bufferPool.poll();
+        return buffer != null ? buffer : new BulkBuffer(DOCUMENT_BUFFER_CAPACITY);
+    }
+
+    public void release(BulkBuffer buffer) {
+        buffer.reset();
+        if (this.bufferPool.size() < MAX_POOLED_BUFFERS) {
+            this.bufferPool.offer(buffer);
+        }
+    }
+
+    public void publish(MetricDocument document) {
+        publishSlot(document);
+    }
+
+    /**
+     * Ends the batch of every sink once it reaches this point.
+     */
+    public void endOfTick() {
+        publishSlot(null);
+    }
+
+    /**
+     * @return how many documents the slowest sink is behind
+     */
+    public long getLag() {
+        long lag = 0;
+        for (Consumer consumer : this.consumers) {
+            lag = Math.max(lag, consumer.getLag());
+        }
+        return lag;
+    }
+
+    /**
+     * @return the number of slots of the ring
+     */
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * @return the documents held by the ring, read by some sinks or by none yet
+     */
+    int getRetained() {
+        int retained = 0;
+        for (int index = 0; index <= this.mask; index++) {
+            Slot slot = this.slots.get(index);
+            if (slot != null && slot.document != null) {
+                retained++;
+            }
+        }
+        return retained;
+    }
+
+    private void publishSlot(MetricDocument document) {
+        long sequence = this.next.getAndIncrement();
+        if (this.consumers.isEmpty()) {
+            release(document);
+            return;
+        }
+        Slot slot = new Slot(sequence, document, this.consumers.size());
+        awaitBlockingSinks(sequence);
+        int index = (int) (sequence & this.mask);
+        Slot current;
+        do {
+            current = this.slots.get(index);
+            if (current != null && current.sequence > sequence) {
+                //this publisher was so slow the ring went all the way round meanwhile
+                release(document);
+                return;
+            }
+        } while (!this.slots.compareAndSet(index, current, slot));
+        for (Consumer consumer : this.consumers) {
+            consumer.signal();
+        }
+    }
+
+    private void release(MetricDocument document) {
+        if (document != null && document.getBuffer() != null) {
+            release(document.getBuffer());
+        }
+    }
+
+    /**
+     * Waits until every blocking sink read the slot the sequence is about to overwrite, or the ring is closed.
+     */
+    private void awaitBlockingSinks(long sequence) {
+        long overwritten = sequence - this.mask - 1;
+        for (Consumer consumer : this.blocking) {
+            if (consumer.cursor > overwritten) {
+                continue;
+            }
+            long start = System.nanoTime();
+            while (consumer.cursor <= overwritten && this.running) {
+                consumer.signal();
+                LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+            }
+            this.metrics.sinkBlocked(consumer.sink.getName(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stops the consumers once they delivered what is already in the ring.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        this.running = false;
+        long end = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+        for (Consumer consumer : this.consumers) {
+            LockSupport.unpark(consumer.thread);
+            consumer.thread.join(Math.max(1, end - System.currentTimeMillis()));
+        }
+    }
+
+    private final class Slot {
+        private final long sequence;
+        private final boolean endOfTick;
+        //the sinks yet to be done with the slot
+        private final AtomicInteger pending;
+        //cleared by the last of them
+        private volatile MetricDocument document;
+
+        Slot(long sequence, MetricDocument document, int sinks) {
+            this.sequence = sequence;
+            this.endOfTick = document == null;
+            this.pending = new AtomicInteger(sinks);
+            this.document = document;
+        }
+
+        /**
+         * Called once by every sink, after writing the document or when skipping it.
+         */
+        void done() {
+            if (this.pending.decrementAndGet() == 0) {
+                MetricDocument document = this.document;
+                this.document = null;
+                release(document);
+            }
+        }
+    }
+
+    /**
+     * Feeds one sink, from its own thread.
+     */
+    private final class Consumer implements Runnable {
+        private final MetricSink sink;
+        private final SinkSettings settings;
+        private final ForwarderMetrics metrics;
+        private final Thread thread;
+        private final long lingerNanos;
+        private volatile long cursor;
+        private volatile boolean parked;
+        private int batched;
+        private long batchStart;
+
+        Consumer(MetricSink sink, ForwarderMetrics metrics) {
+            this.sink = sink;
+            this.settings = sink.getSettings();
+            this.metrics = metrics;
+            this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(this.settings.getLingerMillis());
+            this.thread = new Thread(this, "sink-" + sink.getName());
+            this.thread.setDaemon(true);
+        }
+
+        long getLag() {
+            return next.get() - this.cursor;
+        }
+
+        void signal() {
+            if (this.parked) {
+                LockSupport.unpark(this.thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            long cursor = this.cursor;
+            while (true) {
+                Slot slot = slots.get((int) (cursor & mask));
+                if (slot != null && slot.sequence == cursor) {
+                    cursor++;
+                    this.cursor = cursor;
+                    consume(slot);
+                    continue;
+                }
+                if (slot != null && slot.sequence > cursor) {
+                    //overwritten, the oldest slot still in the ring is the one after the overwriting one
+                    long resume = this.settings.getOverflow() == SinkSettings.Overflow.LATEST ? next.get() : slot.sequence - mask;
+                    this.metrics.sinkDropped(this.sink.getName(), resume - cursor);
+                    skip(cursor, resume);
+                    cursor = resume;
+                    this.cursor = cursor;
+                    continue;
+                }
+                //caught up
+                long now = System.nanoTime();
+                if (this.batched > 0 && this.lingerNanos > 0 && now - this.batchStart >= this.lingerNanos) {
+                    flush();
+                    continue;
+                }
+                if (!running) {
+                    flush();
+                    return;
+                }
+                park(cursor, this.batched > 0 && this.lingerNanos > 0 ? this.batchStart + this.lingerNanos - now : MAX_PARK_NANOS);
+            }
+        }
+
+        private void consume(Slot slot) {
+            if (slot.endOfTick) {
+                slot.done();
+                flush();
+                return;
+            }
+            try {
+                this.sink.write(slot.document);
+            } catch (IOException | RuntimeException e) {
+                this.metrics.sinkFailed(this.sink.getName());
+                LOG.error("Error writing a document to the sink {}", this.sink.getName(), e);
+                return;
+            } finally {
+                slot.done();
+            }
+            if (this.batched++ == 0) {
+                this.batchStart = System.nanoTime();
+            }
+            if (this.settings.getBatch() > 0 && this.batched >= this.settings.getBatch()) {
+                flush();
+            }
+        }
+
+        /**
+         * Gives up the slots from the cursor up to the resume point which were not overwritten yet, so the other
+         * sinks can clear them.
+         */
+        private void skip(long cursor, long resume) {
+            for (long sequence = Math.max(cursor, resume - mask - 1); sequence < resume; sequence++) {
+                Slot slot = slots.get((int) (sequence & mask));
+                if (slot != null && slot.sequence == sequence) {
+                    slot.done();
+                }
+            }
+        }
+
+        private void flush() {
+            if (this.batched == 0) {
+                return;
+            }
+            this.batched = 0;
+            try {
+                this.sink.flush();
+            } catch (IOException | RuntimeException e) {
+                this.metrics.sinkFailed(this.sink.getName());
+                LOG.error("Error flushing the sink {}", this.sink.getName(), e);
+            }
+        }
+
+        private void park(long cursor, long nanos) {
+            this.parked = true;
+            //published meanwhile, the signal may have been missed
+            Slot slot = slots.get((int) (cursor & mask));
+            if ((slot == null || slot.sequence < cursor) && running) {
+                LockSupport.parkNanos(this, Math.min(nanos, MAX_PARK_NANOS));
+            }
+            this.parked = false;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.mimacom.metrics.sink;
+
+/**
+ * How a sink is fed by the {@link SinkRing}. A batch ends, and the sink is flushed, at the end of every polling tick,
+ * after the maximum of documents, or once the first document of the batch waited the linger time.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+public final class SinkSettings {
+
+    private final int batch;
+    private final long lingerMillis;
+    private final Overflow overflow;
+
+    /**
+     * @param batch        documents of a batch, 0 for no limit
+     * @param lingerMillis 0 to wait for the end of the tick or a full batch
+     */
+    public SinkSettings(int batch, long lingerMillis, String overflow) {
+        this.batch = batch;
+        this.lingerMillis = lingerMillis;
+        this.overflow = Overflow.valueOf(overflow.trim().toUpperCase());
+    }
+
+    public int getBatch() {
+        return this.batch;
+    }
+
+    public long getLingerMillis() {
+        return this.lingerMillis;
+    }
+
+    public Overflow getOverflow() {
+        return this.overflow;
+    }
+
+    /**
+     * What a sink falling a whole ring behind does.
+     */
+    public enum Overflow {
+        /**
+         * Holds the publishers up until it read the documents they would overwrite, nothing is lost.
+         */
+        BLOCK,
+        /**
+         * Its oldest documents are overwritten, it goes on with the oldest document still in the ring.
+         */
+        SKIP,
+        /**
+         * Its oldest documents are overwritten, it goes on with the newest document and the whole backlog is dropped.
+         */
+        LATEST
+    }
+}
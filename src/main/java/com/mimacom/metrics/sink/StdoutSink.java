@@ -0,0 +1,54 @@
+package com.mimacom.metrics.sink;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Prints the documents to the standard output, one per line, for debugging. By default it skips to the newest
+ * documents whenever the console cannot keep up.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.sink.stdout.enabled", havingValue = "true")
+public class StdoutSink implements MetricSink {
+
+    private final SinkSettings settings;
+    //System.out flushes on every write, the batch is written in chunks instead
+    private final OutputStream out;
+
+    @Autowired
+    public StdoutSink(@Value("${metricpoller.sink.stdout.batch:100}") int batch,
+                      @Value("${metricpoller.sink.stdout.linger:1000}") long lingerMillis,
+                      @Value("${metricpoller.sink.stdout.overflow:latest}") String overflow) {
+        this.settings = new SinkSettings(batch, lingerMillis, overflow);
+        this.out = new BufferedOutputStream(System.out, 16 * 1024);
+    }
+
+    @Override
+    public String getName() {
+        return "stdout";
+    }
+
+    @Override
+    public SinkSettings getSettings() {
+        return this.settings;
+    }
+
+    @Override
+    public void write(MetricDocument document) throws IOException {
+        this.out.write(document.getSource(), 0, document.getLength());
+        this.out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+}
@@ -0,0 +1,275 @@
+package com.mimacom.metrics.spool;
+
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Append-only log of bulk requests which could not be delivered to Elasticsearch, kept on disk until they are
+ * replayed. The log is split into segments written through memory-mapped files:
+ * <pre>
+ * segment   : [long creation millis] record* [int 0]
+ * record    : [int payload length] [int documents] [payload: the NDJSON bulk instructions]
+ * </pre>
+ * The length of a record is written last, so a record is only visible once it is complete. The position of the
+ * next record to replay is kept in a small mapped file as well, so the spool survives a restart. Segments are
+ * deleted once replayed, or dropped when the spool grows beyond its size or age limits.
+ *
+ * @author Enrique Llerena Dominguez
+ */
+@Component
+@ConditionalOnProperty(name = "metricpoller.spool.enabled", havingValue = "true")
+public class MetricSpool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricSpool.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String POSITION_FILE = "position";
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final Deque<Segment> segments;
+    private final MappedByteBuffer readPosition;
+    private int readOffset;
+    private long nextSegmentId;
+
+    @Autowired
+    public MetricSpool(@Value("${metricpoller.spool.directory:spool}") String directory,
+                       @Value("${metricpoller.spool.segmentSize:67108864}") int segmentSize,
+                       @Value("${metricpoller.spool.maxBytes:1073741824}") long maxBytes,
+                       @Value("${metricpoller.spool.maxAge:86400000}") long maxAgeMillis) throws IOException {
+        this.directory = new File(directory);
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.segments = new ArrayDeque<>();
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create the spool directory " + this.directory.getAbsolutePath());
+        }
+        this.readPosition = map(new File(this.directory, POSITION_FILE), 12);
+        recover();
+    }
+
+    /**
+     * Appends the bulk request to the spool, the buffer can be reused afterwards.
+     */
+    public synchronized void append(BulkBuffer bulkRequest) throws IOException {
+        int recordSize = RECORD_HEADER + bulkRequest.size();
+        Segment segment = this.segments.peekLast();
+        if (segment == null || segment.remaining() < recordSize) {
+            //oversized requests get a segment on their own
+            segment = newSegment(Math.max(this.segmentSize, SEGMENT_HEADER + recordSize));
+        }
+        segment.append(bulkRequest);
+        enforceLimits();
+    }
+
+    public synchronized boolean isEmpty() {
+        skipConsumedSegments();
+        Segment head = this.segments.peekFirst();
+        return head == null || this.readOffset >= head.writePosition;
+    }
+
+    /**
+     * Copies the oldest bulk request of the spool into the buffer, without removing it.
+     *
+     * @return where the request was read, to acknowledge it. Null if the spool is empty
+     */
+    public synchronized Position read(BulkBuffer bulkRequest) {
+        if (isEmpty()) {
+            return null;
+        }
+        Segment head = this.segments.peekFirst();
+        ByteBuffer record = head.buffer.duplicate();
+        int length = record.getInt(this.readOffset);
+        record.position(this.readOffset + RECORD_HEADER);
+        bulkRequest.writeInstructions(record, length);
+        return new Position(head.id, this.readOffset);
+    }
+
+    /**
+     * Removes the bulk request read at the position, once it was delivered. Nothing is removed if it is no longer
+     * the oldest one, e.g. its segment was dropped meanwhile.
+     */
+    public synchronized void acknowledge(Position position) {
+        if (isEmpty()) {
+            return;
+        }
+        Segment head = this.segments.peekFirst();
+        if (head.id != position.segmentId || this.readOffset != position.offset) {
+            return;
+        }
+        this.readOffset += RECORD_HEADER + head.buffer.getInt(this.readOffset);
+        this.readPosition.putLong(0, head.id);
+        this.readPosition.putInt(8, this.readOffset);
+        skipConsumedSegments();
+    }
+
+    /**
+     * @return bytes taken on disk by the segments
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            bytes += segment.buffer.capacity();
+        }
+        return bytes;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        for (Segment segment : this.segments) {
+            segment.buffer.force();
+        }
+        this.readPosition.force();
+    }
+
+    private void recover() throws IOException {
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        long[] ids = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+        for (long id : ids) {
+            File file = segmentFile(id);
+            this.segments.addLast(new Segment(id, file, map(file, (int) file.length())));
+            this.nextSegmentId = id + 1;
+        }
+
+        long readSegment = this.readPosition.getLong(0);
+        while (!this.segments.isEmpty() && this.segments.peekFirst().id < readSegment) {
+            //already replayed, but not deleted before the shutdown
+            delete(this.segments.removeFirst());
+        }
+        //new segments must come after the last replayed one
+        this.nextSegmentId = Math.max(this.nextSegmentId, readSegment + 1);
+        Segment head = this.segments.peekFirst();
+        this.readOffset = head != null && head.id == readSegment ? Math.max(SEGMENT_HEADER, this.readPosition.getInt(8)) : SEGMENT_HEADER;
+        if (!this.segments.isEmpty()) {
+            LOG.info("Recovered {} spool segments from {}", this.segments.size(), this.directory.getAbsolutePath());
+        }
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        long id = this.nextSegmentId++;
+        File file = segmentFile(id);
+        Segment segment = new Segment(id, file, map(file, size));
+        segment.buffer.putLong(0, System.currentTimeMillis());
+        segment.writePosition = SEGMENT_HEADER;
+        if (this.segments.isEmpty()) {
+            this.readOffset = SEGMENT_HEADER;
+        }
+        this.segments.addLast(segment);
+        return segment;
+    }
+
+    private void skipConsumedSegments() {
+        while (this.segments.size() > 1 && this.readOffset >= this.segments.peekFirst().writePosition) {
+            delete(this.segments.removeFirst());
+            this.readOffset = SEGMENT_HEADER;
+        }
+    }
+
+    /**
+     * Drops the oldest segments, replayed or not, while the spool is larger or older than allowed. The segment being
+     * written is always kept.
+     */
+    private void enforceLimits() {
+        long expiry = System.currentTimeMillis() - this.maxAgeMillis;
+        while (this.segments.size() > 1 && (getBytes() > this.maxBytes || this.segments.peekFirst().getCreated() < expiry)) {
+            Segment dropped = this.segments.removeFirst();
+            LOG.warn("Spool limits reached, dropping segment {} with undelivered metrics", dropped.file.getName());
+            delete(dropped);
+            this.readOffset = SEGMENT_HEADER;
+        }
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            LOG.warn("Could not delete the spool segment {}", segment.file.getAbsolutePath());
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(this.directory, String.format("%s%019d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Where a bulk request was read from the spool.
+     */
+    public static final class Position {
+        private final long segmentId;
+        private final int offset;
+
+        Position(long segmentId, int offset) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            //find the end of the records written so far
+            int position = SEGMENT_HEADER;
+            while (position + RECORD_HEADER <= buffer.capacity() && buffer.getInt(position) > 0) {
+                position += RECORD_HEADER + buffer.getInt(position);
+            }
+            this.writePosition = position;
+        }
+
+        long getCreated() {
+            return this.buffer.getLong(0);
+        }
+
+        int remaining() {
+            return this.buffer.capacity() - this.writePosition;
+        }
+
+        void append(BulkBuffer bulkRequest) {
+            ByteBuffer record = this.buffer.duplicate();
+            record.position(this.writePosition + RECORD_HEADER);
+            record.put(bulkRequest.array(), 0, bulkRequest.size());
+            this.buffer.putInt(this.writePosition + 4, bulkRequest.getDocuments());
+            //the length goes last, it makes the record visible
+            this.buffer.putInt(this.writePosition, bulkRequest.size());
+            this.writePosition += RECORD_HEADER + bulkRequest.size();
+        }
+    }
+}
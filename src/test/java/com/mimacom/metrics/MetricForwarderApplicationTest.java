@@ -1,11 +1,14 @@
 package com.mimacom.metrics;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.gson.Gson;
 import com.google.gson.internal.LinkedTreeMap;
 import com.mimacom.metrics.poller.MetricPollerService;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.junit.Assert;
@@ -25,6 +28,7 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.net.ServerSocket;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -52,6 +56,9 @@ public class MetricForwarderApplicationTest {
     @Autowired
     private MetricPollerService metricPollerService;
 
+    @Autowired
+    private MetricRegistry metricRegistry;
+
     @Test
     public void contextLoads() {
         assertTrue(true);
@@ -72,8 +79,8 @@ public class MetricForwarderApplicationTest {
 
         //Verify the bulk was just performed once, and to the proper formatted index
         Mockito.verify(esRestClient,
-                Mockito.times(1)).performRequestAsync(Mockito.eq("POST"),
-                Mockito.matches("_bulk"),
+                Mockito.timeout(5000).times(1)).performRequestAsync(Mockito.eq("POST"),
+                Mockito.eq("/_bulk"),
                 Mockito.eq(Collections.emptyMap()),
                 httpEntityCaptor.capture(),
                 Mockito.any(ResponseListener.class),
@@ -114,8 +121,8 @@ public class MetricForwarderApplicationTest {
         ArgumentCaptor<HttpEntity> entityCaptor = ArgumentCaptor.forClass(HttpEntity.class);
         ArgumentCaptor<BasicHeader> headerCaptor = ArgumentCaptor.forClass(BasicHeader.class);
 
-        Mockito.verify(esRestClient, Mockito.times(1)).performRequestAsync(Mockito.eq("POST"),
-                Mockito.matches("_bulk"),
+        Mockito.verify(esRestClient, Mockito.timeout(5000).times(1)).performRequestAsync(Mockito.eq("POST"),
+                Mockito.eq("/_bulk"),
                 Mockito.eq(Collections.emptyMap()),
                 entityCaptor.capture(),
                 Mockito.any(ResponseListener.class),
@@ -149,6 +156,98 @@ public class MetricForwarderApplicationTest {
         assertHeader(headerCaptor);
     }
 
+    @Test
+    public void timeoutUnresponsiveInstance() throws Exception {
+        //the socket accepts connections on the backlog but never answers
+        try (ServerSocket unresponsive = new ServerSocket(0)) {
+            Mockito.when(discoveryClient.getServices()).thenReturn(Arrays.asList("UNRESPONSIVE-TEST-SERVICE1"));
+            DefaultServiceInstance instance = new DefaultServiceInstance("UNRESPONSIVE-TEST-SERVICE1", "localhost", unresponsive.getLocalPort(), false);
+            Mockito.when(discoveryClient.getInstances("UNRESPONSIVE-TEST-SERVICE1")).thenReturn(Arrays.asList(instance));
+
+            long start = System.currentTimeMillis();
+            metricPollerService.pollInstances();
+            //the tick must end at the deadline (2s in the test config) and not wait for the read timeout
+            assertTrue(System.currentTimeMillis() - start < 2900);
+        }
+
+        ArgumentCaptor<HttpEntity> entityCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        Mockito.verify(esRestClient, Mockito.timeout(5000).times(1)).performRequestAsync(Mockito.eq("POST"),
+                Mockito.eq("/_bulk"),
+                Mockito.eq(Collections.emptyMap()),
+                entityCaptor.capture(),
+                Mockito.any(ResponseListener.class),
+                Mockito.any(BasicHeader.class));
+
+        List<String> instructions = getInstructions(entityCaptor.getValue());
+        assertEquals(instructions.size(), 4);
+        assertActionAndMetadataInstructions(instructions);
+        assertDocumentInstructions(instructions);
+
+        Gson gson = new Gson();
+        Map<String, String> json = gson.fromJson(instructions.get(1), Map.class);
+        Assert.assertEquals(json.get("error.value"), "Scrape timed out");
+        json = gson.fromJson(instructions.get(3), Map.class);
+        Assert.assertEquals(json.get("error.value"), "Scrape timed out");
+    }
+
+    @Test
+    public void retryRejectedItems() throws Exception {
+        Mockito.when(discoveryClient.getServices()).thenReturn(Arrays.asList("TEST-SERVICE1"));
+        DefaultServiceInstance localServerInstance = new DefaultServiceInstance("TEST-SERVICE1", "localhost", portOfLocalServer, false);
+        Mockito.when(discoveryClient.getInstances("TEST-SERVICE1")).thenReturn(Arrays.asList(localServerInstance));
+
+        metricPollerService.pollInstances();
+
+        ArgumentCaptor<HttpEntity> entityCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        ArgumentCaptor<ResponseListener> listenerCaptor = ArgumentCaptor.forClass(ResponseListener.class);
+        Mockito.verify(esRestClient, Mockito.timeout(5000).times(1)).performRequestAsync(Mockito.eq("POST"),
+                Mockito.eq("/_bulk"),
+                Mockito.eq(Collections.emptyMap()),
+                entityCaptor.capture(),
+                listenerCaptor.capture(),
+                Mockito.any(BasicHeader.class));
+        List<String> instructions = getInstructions(entityCaptor.getValue());
+        assertEquals(instructions.size(), 4);
+
+        //the first item is rejected because of a full queue, the second one is indexed
+        Response response = Mockito.mock(Response.class);
+        Mockito.when(response.getEntity()).thenReturn(new NStringEntity("{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"i\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}},"
+                + "{\"index\":{\"_index\":\"i\",\"status\":201}}]}"));
+        listenerCaptor.getValue().onSuccess(response);
+
+        //only the rejected item is sent again
+        Mockito.verify(esRestClient, Mockito.timeout(2000).times(2)).performRequestAsync(Mockito.eq("POST"),
+                Mockito.eq("/_bulk"),
+                Mockito.eq(Collections.emptyMap()),
+                entityCaptor.capture(),
+                listenerCaptor.capture(),
+                Mockito.any(BasicHeader.class));
+        List<String> retried = getInstructions(entityCaptor.getValue());
+        assertEquals(retried, instructions.subList(0, 2));
+    }
+
+    @Test
+    public void selfInstrumentation() throws Exception {
+        Mockito.when(discoveryClient.getServices()).thenReturn(Arrays.asList("TEST-SERVICE1", "NOT-ACCESSIBLE-TEST-SERVICE1"));
+        Mockito.when(discoveryClient.getInstances("TEST-SERVICE1")).thenReturn(Arrays.asList(new DefaultServiceInstance("TEST-SERVICE1", "localhost", portOfLocalServer, false)));
+        Mockito.when(discoveryClient.getInstances("NOT-ACCESSIBLE-TEST-SERVICE1")).thenReturn(Arrays.asList(new DefaultServiceInstance("NOT-ACCESSIBLE-TEST-SERVICE1", "localhost", 1, false)));
+
+        metricPollerService.pollInstances();
+        //the documents reach the bulk request from the thread of the sink
+        Mockito.verify(esRestClient, Mockito.timeout(5000)).performRequestAsync(Mockito.eq("POST"), Mockito.eq("/_bulk"),
+                Mockito.eq(Collections.emptyMap()), Mockito.any(HttpEntity.class), Mockito.any(ResponseListener.class), Mockito.any(BasicHeader.class));
+
+        assertEquals(1, metricRegistry.timer("metricforwarder.tick").getCount());
+        assertEquals(1, metricRegistry.timer("metricforwarder.scrape.test-service1.metrics").getCount());
+        assertEquals(1, metricRegistry.timer("metricforwarder.scrape.test-service1.health").getCount());
+        assertTrue(metricRegistry.counter("metricforwarder.scrape.bytes").getCount() > 0);
+        assertEquals(1, metricRegistry.counter("metricforwarder.scrape.not-accessible-test-service1.metrics.failures").getCount());
+        assertEquals(1, metricRegistry.histogram("metricforwarder.bulk.request.documents").getCount());
+        assertEquals(4, metricRegistry.histogram("metricforwarder.bulk.request.documents").getSnapshot().getMax());
+        assertEquals(0, metricRegistry.getGauges().get("metricforwarder.bulk.cache.documents").getValue());
+    }
+
     private static List<String> getInstructions(HttpEntity httpEntity) throws Exception {
         return new BufferedReader(new InputStreamReader(httpEntity.getContent())).lines().collect(Collectors.toList());
     }
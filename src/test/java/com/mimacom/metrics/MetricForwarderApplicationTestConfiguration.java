@@ -1,6 +1,7 @@
 package com.mimacom.metrics;
 
 import com.mimacom.metrics.configuration.EnableSchedulingConfiguration;
+import com.mimacom.metrics.elasticsearch.ElasticsearchNodes;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
 import org.springframework.beans.factory.annotation.Value;
@@ -8,21 +9,20 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.FilterType;
-import org.springframework.web.client.RestTemplate;
 
 /**
  * Created by _domine3 on 23.06.2017.
  */
 @SpringBootApplication
-@ComponentScan(value = {"com.mimacom.metrics.forwarder", "com.mimacom.metrics.poller", "com.mimacom.metrics.elasticsearch.util"})
+@ComponentScan(value = {"com.mimacom.metrics.forwarder", "com.mimacom.metrics.poller", "com.mimacom.metrics.elasticsearch.util", "com.mimacom.metrics.instrumentation", "com.mimacom.metrics.discovery", "com.mimacom.metrics.filter", "com.mimacom.metrics.sink"})
 public class MetricForwarderApplicationTestConfiguration {
     @Bean(destroyMethod = "close")
     public RestClient restClient(@Value("${elasticsearch.host:localhost}") String elasticsearchHost, @Value("${elasticsearch.port:9200}") int port) {
         return RestClient.builder(new HttpHost(elasticsearchHost, port)).build();
     }
 
-    @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
+    @Bean(destroyMethod = "close")
+    public ElasticsearchNodes elasticsearchNodes(RestClient restClient) {
+        return ElasticsearchNodes.of(restClient);
     }
 }
@@ -0,0 +1,146 @@
+package com.mimacom.metrics.cluster;
+
+import com.mimacom.metrics.discovery.ServiceTopology;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several forwarder replicas, each in its own application context, sharing a registry.
+ */
+public class ClusterShardsTest {
+
+    private static final String APPLICATION = "metricpoller";
+
+    private final Map<String, List<ServiceInstance>> registry = new ConcurrentHashMap<>();
+    private final List<AnnotationConfigApplicationContext> contexts = new ArrayList<>();
+    private final List<ServiceInstance> targets = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 300; i++) {
+            this.targets.add(new DefaultServiceInstance("SERVICE", "host" + i, 8080, false));
+        }
+        this.registry.put("SERVICE", this.targets);
+        this.registry.put(APPLICATION.toUpperCase(), new CopyOnWriteArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        this.contexts.forEach(AnnotationConfigApplicationContext::close);
+    }
+
+    @Test
+    public void everyInstanceScrapedByOneReplica() {
+        List<ClusterShards> replicas = new ArrayList<>();
+        for (int port = 9001; port <= 9003; port++) {
+            replicas.add(startReplica(port));
+        }
+        int[] owned = new int[replicas.size()];
+        for (ServiceInstance target : this.targets) {
+            int owners = 0;
+            for (int i = 0; i < replicas.size(); i++) {
+                if (replicas.get(i).owns(target)) {
+                    owners++;
+                    owned[i]++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+        for (int count : owned) {
+            assertTrue("unbalanced shards " + count, count > 60);
+        }
+        assertEquals(3, replicas.get(0).getMembers());
+    }
+
+    @Test
+    public void onlyTheInstancesOfALeavingReplicaMove() {
+        ClusterShards first = startReplica(9001);
+        ClusterShards second = startReplica(9002);
+        startReplica(9003);
+        Map<ServiceInstance, ClusterShards> before = owners(first, second);
+
+        //the third replica leaves the registry
+        this.registry.get(APPLICATION.toUpperCase()).remove(2);
+        Map<ServiceInstance, ClusterShards> after = owners(first, second);
+        assertEquals(this.targets.size(), after.size());
+        before.forEach((target, owner) -> assertEquals(owner, after.get(target)));
+        assertTrue(before.size() < after.size());
+    }
+
+    private Map<ServiceInstance, ClusterShards> owners(ClusterShards... replicas) {
+        Map<ServiceInstance, ClusterShards> owners = new HashMap<>();
+        for (ServiceInstance target : this.targets) {
+            for (ClusterShards replica : replicas) {
+                if (replica.owns(target)) {
+                    owners.put(target, replica);
+                }
+            }
+        }
+        return owners;
+    }
+
+    private ClusterShards startReplica(int port) {
+        ServiceInstance self = new DefaultServiceInstance(APPLICATION.toUpperCase(), "localhost", port, false);
+        this.registry.get(APPLICATION.toUpperCase()).add(self);
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("spring.application.name", APPLICATION);
+        properties.put("metricpoller.cluster.enabled", "true");
+        //read the registry on every call
+        properties.put("metricpoller.topology.refresh", "0");
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("replica", properties));
+        context.getBeanFactory().registerSingleton("discoveryClient", new StubDiscoveryClient(this.registry, self));
+        context.register(ServiceTopology.class, ClusterShards.class);
+        context.refresh();
+        this.contexts.add(context);
+        return context.getBean(ClusterShards.class);
+    }
+
+    private static class StubDiscoveryClient implements DiscoveryClient {
+        private final Map<String, List<ServiceInstance>> registry;
+        private final ServiceInstance self;
+
+        StubDiscoveryClient(Map<String, List<ServiceInstance>> registry, ServiceInstance self) {
+            this.registry = registry;
+            this.self = self;
+        }
+
+        @Override
+        public String description() {
+            return "stub";
+        }
+
+        @Override
+        public ServiceInstance getLocalServiceInstance() {
+            return this.self;
+        }
+
+        @Override
+        public List<ServiceInstance> getInstances(String serviceId) {
+            return this.registry.getOrDefault(serviceId, Collections.emptyList());
+        }
+
+        @Override
+        public List<String> getServices() {
+            return new ArrayList<>(this.registry.keySet());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.mimacom.metrics.delta;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.DocumentSchema;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.elasticsearch.util.MetricTransform;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTrackerTest {
+
+    private static final ServiceInstance INSTANCE = new DefaultServiceInstance("service", "localhost", 8080, false);
+
+    private final DeltaTracker tracker = new DeltaTracker(new String[]{"counter.status.*"}, 60_000, 600_000);
+
+    @Test
+    public void onlyChangedMetricsAreForwarded() throws IOException {
+        JsonObject first = scrape(0, "{\"mem\": 100, \"threads\": 10, \"counter.status.200.root\": 5}");
+        assertEquals(100, first.get("mem.value").getAsInt());
+        assertEquals(10, first.get("threads.value").getAsInt());
+        //nothing to compare the first scrape with
+        assertFalse(first.has("counter.status.200.root.rate.value"));
+
+        JsonObject second = scrape(10_000, "{\"mem\": 120, \"threads\": 10, \"counter.status.200.root\": 25}");
+        assertEquals(120, second.get("mem.value").getAsInt());
+        assertFalse(second.has("threads.value"));
+        assertEquals(2.0, second.get("counter.status.200.root.rate.value").getAsDouble(), 0.0);
+        assertTrue(second.has("serviceId.value"));
+    }
+
+    @Test
+    public void counterResetAfterRestart() throws IOException {
+        scrape(0, "{\"counter.status.200.root\": 500}");
+        JsonObject restarted = scrape(5_000, "{\"counter.status.200.root\": 10}");
+        assertEquals(10, restarted.get("counter.status.200.root.value").getAsInt());
+        assertEquals(2.0, restarted.get("counter.status.200.root.rate.value").getAsDouble(), 0.0);
+    }
+
+    @Test
+    public void fullSnapshotAfterInterval() throws IOException {
+        scrape(0, "{\"mem\": 100}");
+        assertFalse(scrape(30_000, "{\"mem\": 100}").has("mem.value"));
+        assertTrue(scrape(60_000, "{\"mem\": 100}").has("mem.value"));
+    }
+
+    @Test
+    public void incompleteScrapeIsDiscarded() throws IOException {
+        scrape(0, "{\"mem\": 100}");
+        MetricTransform transform = this.tracker.begin(INSTANCE, "/metrics", 5_000);
+        assertNull("the endpoint is being scraped", this.tracker.begin(INSTANCE, "/metrics", 5_000));
+        transform.accept("mem", "200");
+        transform.release(true);
+
+        //the failed scrape never reached Elasticsearch, the change is still forwarded
+        assertEquals(200, scrape(10_000, "{\"mem\": 200}").get("mem.value").getAsInt());
+    }
+
+    @Test
+    public void timedOutScrapeIsDiscarded() throws IOException {
+        scrape(0, "{\"mem\": 100}");
+        //complete, but the deadline forwarded a timeout instead
+        scrape(5_000, "{\"mem\": 200}", false);
+
+        assertEquals(200, scrape(10_000, "{\"mem\": 200}").get("mem.value").getAsInt());
+    }
+
+    private JsonObject scrape(long timestamp, String metrics) throws IOException {
+        return scrape(timestamp, metrics, true);
+    }
+
+    private JsonObject scrape(long timestamp, String metrics, boolean forwarded) throws IOException {
+        BulkBuffer document = new BulkBuffer(256);
+        MetricTransform transform = this.tracker.begin(INSTANCE, "/metrics", timestamp);
+        try {
+            MessageBuilder.writeMessageFromMetrics(new JsonReader(new StringReader(metrics)), "/metrics", INSTANCE, timestamp, document, new MessageOptions(DocumentSchema.FORMATTED, transform, null));
+        } finally {
+            transform.release(forwarded);
+        }
+        return new JsonParser().parse(new String(document.array(), 0, document.size(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+}
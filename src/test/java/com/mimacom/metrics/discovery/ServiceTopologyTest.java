@@ -0,0 +1,108 @@
+package com.mimacom.metrics.discovery;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.cloud.client.discovery.event.HeartbeatEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ServiceTopologyTest {
+
+    private static final ServiceInstance FIRST = new DefaultServiceInstance("SERVICE", "host1", 8080, false);
+    private static final ServiceInstance SECOND = new DefaultServiceInstance("SERVICE", "host2", 8080, false);
+
+    private final DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+    private final ApplicationEventPublisher publisher = mock(ApplicationEventPublisher.class);
+
+    @Test
+    public void snapshotIsKeptUntilTheRegistryChanges() {
+        when(this.discoveryClient.getServices()).thenReturn(Collections.singletonList("SERVICE"));
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(FIRST));
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, this.publisher, 60_000);
+
+        ServiceTopology.Snapshot snapshot = topology.getSnapshot();
+        assertEquals(Collections.singletonList(FIRST), snapshot.getServices().get("SERVICE"));
+        assertSame(snapshot, topology.getSnapshot());
+        verify(this.discoveryClient, times(1)).getServices();
+
+        //the same heartbeat value means nothing changed
+        topology.onHeartbeat(new HeartbeatEvent(this, 1L));
+        topology.onHeartbeat(new HeartbeatEvent(this, 1L));
+        verify(this.discoveryClient, times(2)).getServices();
+        assertNotSame(snapshot, topology.getSnapshot());
+    }
+
+    @Test
+    public void concurrentCallersReadTheRegistryOnce() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch registry = new CountDownLatch(1);
+        when(this.discoveryClient.getServices()).thenAnswer(invocation -> {
+            reading.countDown();
+            registry.await();
+            return Collections.singletonList("SERVICE");
+        });
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(FIRST));
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, this.publisher, 60_000);
+
+        Thread first = new Thread(topology::getSnapshot);
+        first.start();
+        reading.await();
+        Thread second = new Thread(topology::getSnapshot);
+        second.start();
+        //the second caller found the snapshot stale as well, and waits for the first one
+        Thread.sleep(50);
+        registry.countDown();
+        first.join();
+        second.join();
+
+        verify(this.discoveryClient, times(1)).getServices();
+        verify(this.publisher, times(1)).publishEvent(any(TopologyChangedEvent.class));
+    }
+
+    @Test
+    public void publishAddedAndRemovedInstances() {
+        when(this.discoveryClient.getServices()).thenReturn(Collections.singletonList("SERVICE"));
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(FIRST));
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, this.publisher, 60_000);
+        topology.getSnapshot();
+
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(FIRST));
+        topology.refresh();
+        //the initial instances are announced, no change since
+        verify(this.publisher, times(1)).publishEvent(any(TopologyChangedEvent.class));
+
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(SECOND));
+        topology.refresh();
+        ArgumentCaptor<TopologyChangedEvent> event = ArgumentCaptor.forClass(TopologyChangedEvent.class);
+        verify(this.publisher, times(2)).publishEvent(event.capture());
+        assertEquals(Collections.singletonList(SECOND), event.getValue().getAdded());
+        assertEquals(Collections.singletonList(FIRST), event.getValue().getRemoved());
+    }
+
+    @Test
+    public void keepSnapshotWhenTheRegistryFails() {
+        when(this.discoveryClient.getServices()).thenReturn(Collections.singletonList("SERVICE"));
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(FIRST));
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, this.publisher, 0);
+        ServiceTopology.Snapshot snapshot = topology.getSnapshot();
+
+        when(this.discoveryClient.getServices()).thenThrow(new IllegalStateException("registry down"));
+        assertSame(snapshot, topology.getSnapshot());
+        //only the initial instances were announced
+        verify(this.publisher, times(1)).publishEvent(any(TopologyChangedEvent.class));
+    }
+}
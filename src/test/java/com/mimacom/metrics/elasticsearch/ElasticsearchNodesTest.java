@@ -0,0 +1,135 @@
+package com.mimacom.metrics.elasticsearch;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The nodes are local stub HTTP servers.
+ */
+public class ElasticsearchNodesTest {
+
+    private final List<StubNode> stubs = new ArrayList<>();
+    private ElasticsearchNodes nodes;
+
+    @After
+    public void tearDown() {
+        if (this.nodes != null) {
+            this.nodes.close();
+        }
+        this.stubs.forEach(stub -> stub.server.stop(0));
+    }
+
+    @Test
+    public void balancedAcrossHealthyNodesWithinTheirLimit() throws Exception {
+        StubNode first = startStub(50, null);
+        StubNode second = startStub(50, null);
+        HttpHost down;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            down = new HttpHost("127.0.0.1", socket.getLocalPort());
+        }
+        this.nodes = new ElasticsearchNodes(Arrays.asList(first.host, second.host, down), host -> RestClient.builder(host).build(), 2, 60_000, 60_000, 0);
+
+        int requests = 40;
+        CountDownLatch completed = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            ElasticsearchNodes.Node node = this.nodes.acquire();
+            long start = System.nanoTime();
+            node.getClient().performRequestAsync("POST", "/_bulk", Collections.emptyMap(), null, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    nodes.release(node, System.nanoTime() - start, false);
+                    completed.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    nodes.release(node, System.nanoTime() - start, true);
+                    completed.countDown();
+                }
+            });
+        }
+        assertTrue(completed.await(30, TimeUnit.SECONDS));
+
+        assertEquals(2, this.nodes.getHealthyNodes());
+        //the node down only got the requests sent before the first one failed, at most its limit
+        int lost = requests - first.requests.get() - second.requests.get();
+        assertTrue("the node down got " + lost, lost >= 1 && lost <= 2);
+        for (StubNode stub : Arrays.asList(first, second)) {
+            assertTrue("at most 2 requests in flight per node, was " + stub.maxInFlight.get(), stub.maxInFlight.get() <= 2);
+            assertTrue("balanced, got " + stub.requests.get(), stub.requests.get() >= 15);
+        }
+    }
+
+    @Test
+    public void sniffTheNodesOfTheCluster() throws Exception {
+        StubNode second = startStub(0, null);
+        StubNode third = startStub(0, null);
+        StubNode first = startStub(0, "{\"nodes\":{"
+                + "\"a\":{\"name\":\"a\",\"http\":{\"bound_address\":[\"0.0.0.0:1\"],\"publish_address\":\"" + second.host.toHostString() + "\"}},"
+                + "\"b\":{\"name\":\"b\",\"http\":{\"publish_address\":\"es-b/" + third.host.toHostString() + "\"}}}}");
+        this.nodes = new ElasticsearchNodes(Collections.singletonList(first.host), host -> RestClient.builder(host).build(), 2, 1000, 1000, 60_000);
+
+        long end = System.currentTimeMillis() + 10_000;
+        while (this.nodes.getNodes().size() != 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList(second.host, third.host), this.nodes.getNodes().stream().map(ElasticsearchNodes.Node::getHost).collect(Collectors.toList()));
+    }
+
+    private StubNode startStub(long latencyMillis, String nodesResponse) throws IOException {
+        StubNode stub = new StubNode();
+        stub.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        stub.server.createContext("/", exchange -> {
+            int inFlight = stub.inFlight.incrementAndGet();
+            stub.maxInFlight.accumulateAndGet(inFlight, Math::max);
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stub.inFlight.decrementAndGet();
+            stub.requests.incrementAndGet();
+            byte[] body = (nodesResponse != null ? nodesResponse : "{\"took\":1,\"errors\":false,\"items\":[]}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        stub.server.setExecutor(Executors.newCachedThreadPool());
+        stub.server.start();
+        stub.host = new HttpHost("127.0.0.1", stub.server.getAddress().getPort());
+        this.stubs.add(stub);
+        return stub;
+    }
+
+    private static class StubNode {
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private HttpServer server;
+        private HttpHost host;
+    }
+}
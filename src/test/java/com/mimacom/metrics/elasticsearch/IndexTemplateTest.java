@@ -0,0 +1,57 @@
+package com.mimacom.metrics.elasticsearch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexTemplateTest {
+
+    @Test
+    public void installedAtStartupOnceElasticsearchAnswers() throws Exception {
+        BlockingQueue<String> requests = new ArrayBlockingQueue<>(10);
+        BlockingQueue<JsonObject> templates = new ArrayBlockingQueue<>(10);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            //the first attempt fails
+            int status = requests.size() == 1 ? 503 : 200;
+            if (status == 200) {
+                templates.add(new JsonParser().parse(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject());
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        HttpHost host = new HttpHost("127.0.0.1", server.getAddress().getPort());
+        ElasticsearchNodes nodes = new ElasticsearchNodes(Collections.singletonList(host), h -> RestClient.builder(h).build(), 2, 10, 10, 0);
+        IndexTemplate template = new IndexTemplate(nodes, new IndexManager("metrics", "yyyy-MM-dd", "typed"), 1, 0, "5s", 50);
+        try {
+            template.start();
+            JsonObject installed = templates.poll(10, TimeUnit.SECONDS);
+
+            assertEquals("PUT /_template/template_metrics", requests.poll());
+            assertEquals("metrics-*", installed.get("template").getAsString());
+            JsonObject properties = installed.getAsJsonObject("mappings").getAsJsonObject("timestamped-metric").getAsJsonObject("properties");
+            assertEquals("epoch_millis", properties.getAsJsonObject("timestamp.value").get("format").getAsString());
+            assertEquals("keyword", properties.getAsJsonObject("serviceId.value").get("type").getAsString());
+        } finally {
+            template.close();
+            nodes.close();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkCompressorTest {
+
+    private final BulkCompressor compressor = new BulkCompressor(6);
+
+    @Test
+    public void compressedRequestIsValidGzip() throws IOException {
+        BulkBuffer bulkRequest = new BulkBuffer(64);
+        for (int i = 0; i < 2000; i++) {
+            bulkRequest.writeUtf8("{\"index\":{\"_index\":\"metrics-2017.06.01\",\"_type\":\"metric\"}}\n{\"mem.value\":" + i + "}\n");
+        }
+        //the deflater is reused for the second request
+        for (int round = 0; round < 2; round++) {
+            BulkBuffer compressed = new BulkBuffer(64);
+            this.compressor.compress(bulkRequest, compressed);
+            assertTrue(compressed.size() * 10 < bulkRequest.size());
+            assertArrayEquals(copy(bulkRequest), gunzip(compressed));
+        }
+    }
+
+    @Test
+    public void emptyRequest() throws IOException {
+        BulkBuffer compressed = new BulkBuffer(64);
+        this.compressor.compress(new BulkBuffer(64), compressed);
+        assertArrayEquals(new byte[0], gunzip(compressed));
+        assertEquals("gzip", this.compressor.getHeader().getValue());
+    }
+
+    private static byte[] copy(BulkBuffer buffer) {
+        byte[] bytes = new byte[buffer.size()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, buffer.size());
+        return bytes;
+    }
+
+    private static byte[] gunzip(BulkBuffer compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array(), 0, compressed.size()))) {
+            byte[] chunk = new byte[4096];
+            for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+                out.write(chunk, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+}
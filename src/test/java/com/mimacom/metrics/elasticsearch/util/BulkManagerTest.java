@@ -0,0 +1,123 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkManagerTest {
+
+    @Test
+    public void noInstructionLostWhileDraining() throws Exception {
+        BulkManager bulkManager = new BulkManager(10, Long.MAX_VALUE, 0, true);
+        int producers = 8;
+        int documentsPerProducer = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean producing = new AtomicBoolean(true);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < documentsPerProducer; i++) {
+                    add(bulkManager, "index", "{\"producer\":" + producer + ",\"i\":" + i + "}");
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        //drain concurrently, the way autoflush does
+        long[] drained = new long[1];
+        Thread drainer = new Thread(() -> {
+            awaitQuietly(start);
+            while (producing.get()) {
+                drained[0] += countAndCheck(bulkManager);
+            }
+        });
+        drainer.start();
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        producing.set(false);
+        drainer.join();
+        drained[0] += countAndCheck(bulkManager);
+
+        assertEquals((long) producers * documentsPerProducer, drained[0]);
+    }
+
+    @Test
+    public void fullByBytesAndLinger() throws Exception {
+        BulkManager bySize = new BulkManager(1000, 200, 0, true);
+        add(bySize, "index", "{\"a\":1}");
+        Assert.assertFalse(bySize.isCacheFull());
+        add(bySize, "index", "{\"padding\":\"0123456789012345678901234567890123456789012345678901234567890123456789\"}");
+        assertTrue(bySize.isCacheFull());
+
+        BulkManager byLinger = new BulkManager(1000, Long.MAX_VALUE, 20, true);
+        Assert.assertFalse(byLinger.isCacheFull());
+        add(byLinger, "index", "{\"a\":1}");
+        Assert.assertFalse(byLinger.isCacheFull());
+        Thread.sleep(30);
+        assertTrue(byLinger.isCacheFull());
+    }
+
+    @Test
+    public void splitAtDocumentBoundaries() {
+        BulkManager bulkManager = new BulkManager(1000, 150, 0, true);
+        for (int i = 0; i < 10; i++) {
+            //about 70 bytes per document with the action & metadata line
+            add(bulkManager, "i", "{\"i\":" + i + "}");
+        }
+        BulkBuffer bulkRequest = bulkManager.drainBulkRequest();
+
+        int document = 0;
+        int requests = 0;
+        while (document < bulkRequest.getDocuments()) {
+            BulkBuffer splitRequest = new BulkBuffer(16);
+            document = bulkManager.split(bulkRequest, document, splitRequest);
+            assertTrue(splitRequest.size() <= 150);
+            assertEquals(2, splitRequest.getDocuments());
+            requests++;
+        }
+        assertEquals(5, requests);
+    }
+
+    private static void add(BulkManager bulkManager, String index, String document) {
+        byte[] source = document.getBytes(StandardCharsets.UTF_8);
+        bulkManager.addInstruction(BulkManager.encodeActionAndMetadata(index), source, 0, source.length);
+    }
+
+    private static int countAndCheck(BulkManager bulkManager) {
+        BulkBuffer bulkRequest = bulkManager.drainBulkRequest();
+        String content = new String(bulkRequest.array(), 0, bulkRequest.size(), StandardCharsets.UTF_8);
+        String[] lines = content.isEmpty() ? new String[0] : content.split("\n");
+        assertEquals(bulkRequest.getDocuments() * 2, lines.length);
+        for (int i = 0; i < lines.length; i += 2) {
+            //action & metadata and document lines stay paired
+            assertTrue(lines[i].startsWith("{ \"index\""));
+            assertTrue(lines[i + 1].startsWith("{\"producer\""));
+        }
+        int documents = bulkRequest.getDocuments();
+        bulkManager.release(bulkRequest);
+        return documents;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
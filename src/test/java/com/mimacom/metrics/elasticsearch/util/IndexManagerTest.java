@@ -0,0 +1,46 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IndexManagerTest {
+
+    @Test
+    public void routeByDocumentTimestamp() {
+        IndexManager indexManager = new IndexManager("metrics", "yyyy-MM-dd");
+
+        assertEquals("metrics-admin-metrics-2017-06-23", indexManager.getIndexName("/admin/metrics", millis(2017, 6, 23, 23, 59)));
+        assertEquals("metrics-admin-metrics-2017-06-24", indexManager.getIndexName("/admin/metrics", millis(2017, 6, 24, 0, 0)));
+        //late documents still go to the index of their day
+        assertEquals("metrics-admin-metrics-2017-06-23", indexManager.getIndexName("/admin/metrics", millis(2017, 6, 23, 12, 0)));
+        assertEquals("metrics-health-2017-06-24", indexManager.getIndexName("health", millis(2017, 6, 24, 8, 0)));
+    }
+
+    @Test
+    public void periodFollowsTheDateFormat() {
+        IndexManager hourly = new IndexManager("metrics", "yyyy.MM.dd'h'HH");
+        assertEquals("metrics-metrics-2017.06.23h10", hourly.getIndexName("/metrics", millis(2017, 6, 23, 10, 59)));
+        assertEquals("metrics-metrics-2017.06.23h11", hourly.getIndexName("/metrics", millis(2017, 6, 23, 11, 0)));
+
+        IndexManager monthly = new IndexManager("metrics", "yyyy-MM");
+        assertEquals("metrics-metrics-2017-06", monthly.getIndexName("/metrics", millis(2017, 6, 30, 23, 59)));
+        assertEquals("metrics-metrics-2017-07", monthly.getIndexName("/metrics", millis(2017, 7, 1, 0, 0)));
+    }
+
+    @Test
+    public void actionAndMetadataEncodedOncePerPeriod() {
+        IndexManager indexManager = new IndexManager("metrics", "yyyy-MM-dd");
+        byte[] first = indexManager.getActionAndMetadata("/metrics", millis(2017, 6, 23, 1, 0));
+        assertSame(first, indexManager.getActionAndMetadata("/metrics", millis(2017, 6, 23, 22, 0)));
+        assertEquals("{ \"index\" : { \"_index\" : \"metrics-metrics-2017-06-23\", \"_type\" : \"timestamped-metric\"} }\n", new String(first));
+    }
+
+    private static long millis(int year, int month, int day, int hour, int minute) {
+        return LocalDateTime.of(year, month, day, hour, minute).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,56 @@
+package com.mimacom.metrics.elasticsearch.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageBuilderTest {
+
+    private static final ServiceInstance INSTANCE = new DefaultServiceInstance("SERVICE", "localhost", 8080, false);
+    private static final long TIMESTAMP = 1498212000123L;
+
+    @Test
+    public void formattedTimestamp() throws Exception {
+        JsonObject document = write("{\"mem\": 10}", DocumentSchema.FORMATTED);
+
+        assertEquals(new SimpleDateFormat(DocumentSchema.TIMESTAMP_PATTERN).format(new Date(TIMESTAMP)), document.get("timestamp.value").getAsString());
+    }
+
+    @Test
+    public void typedDocument() throws Exception {
+        String json = write("{\"mem\": 10, \"systemload.average\": 0.25, \"uptime\": 9007199254740993}", DocumentSchema.TYPED).toString();
+
+        assertEquals("{\"mem.value\":10,\"systemload.average.value\":0.25,\"uptime.value\":9007199254740993,\"timestamp.value\":1498212000123,"
+                + "\"endpoint.value\":\"/metrics\",\"host.value\":\"localhost\",\"port.value\":8080,\"serviceId.value\":\"SERVICE\"}", json);
+    }
+
+    @Test
+    public void numbersOfAMapKeepTheirType() {
+        HashMap<String, Object> metrics = new HashMap<>();
+        metrics.put("count", 3L);
+        metrics.put("ratio", 0.5);
+        metrics.put("timestamp", "left out");
+        JsonObject document = new JsonParser().parse(MessageBuilder.buildMessageFromMetrics(metrics, "/metrics", INSTANCE, TIMESTAMP, MessageOptions.of(DocumentSchema.TYPED))).getAsJsonObject();
+
+        assertEquals("3", document.get("count.value").toString());
+        assertEquals("0.5", document.get("ratio.value").toString());
+        assertEquals("1498212000123", document.get("timestamp.value").toString());
+    }
+
+    private static JsonObject write(String metrics, DocumentSchema schema) throws Exception {
+        BulkBuffer document = new BulkBuffer(1024);
+        MessageBuilder.writeMessageFromMetrics(new JsonReader(new StringReader(metrics)), "/metrics", INSTANCE, TIMESTAMP, document, MessageOptions.of(schema));
+        return new JsonParser().parse(new String(document.array(), 0, document.size(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+}
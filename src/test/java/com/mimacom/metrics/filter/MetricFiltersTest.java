@@ -0,0 +1,88 @@
+package com.mimacom.metrics.filter;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.DocumentSchema;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class MetricFiltersTest {
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final ForwarderMetrics metrics = new ForwarderMetrics(this.registry, mock(BulkManager.class));
+
+    @Test
+    public void includeAndExcludePatterns() {
+        MetricFilters filters = new MetricFilters(new String[]{"gauge.response.*", "counter.status.*", "!counter.status.404.*", "mem"}, this.metrics);
+        Predicate<String> keys = filters.forTarget("ORDERS", "/admin/metrics");
+
+        assertTrue(keys.test("gauge.response.orders"));
+        assertTrue(keys.test("counter.status.200.orders"));
+        assertTrue(keys.test("mem"));
+        assertFalse(keys.test("counter.status.404.orders"));
+        assertFalse(keys.test("mem.free"));
+        assertFalse(keys.test("gauge.response"));
+        assertEquals(1, this.registry.counter("metricforwarder.filter.!counter.status.404.*.dropped").getCount());
+        assertEquals(2, this.registry.counter("metricforwarder.filter.unmatched.dropped").getCount());
+    }
+
+    @Test
+    public void filtersScopedPerServiceAndEndpoint() {
+        MetricFilters filters = new MetricFilters(new String[]{"orders:!gc.*", "*:/admin/health:status", " "}, this.metrics);
+        assertNull(filters.forTarget("PAYMENTS", "/admin/metrics"));
+
+        Predicate<String> orders = filters.forTarget("ORDERS", "/admin/metrics");
+        assertFalse(orders.test("gc.ps_scavenge.count"));
+        assertTrue(orders.test("mem"));
+
+        Predicate<String> health = filters.forTarget("PAYMENTS", "/admin/health");
+        assertTrue(health.test("status"));
+        assertFalse(health.test("diskSpace"));
+    }
+
+    @Test
+    public void patternsHoldingTheSeparator() {
+        MetricFilters filters = new MetricFilters(new String[]{"*:jmx:type=*", "orders:/admin/metrics:!jmx:type=Memory"}, this.metrics);
+        Predicate<String> payments = filters.forTarget("PAYMENTS", "/admin/metrics");
+        assertTrue(payments.test("jmx:type=Memory"));
+        assertFalse(payments.test("mem"));
+
+        Predicate<String> orders = filters.forTarget("ORDERS", "/admin/metrics");
+        assertTrue(orders.test("jmx:type=Threading"));
+        assertFalse(orders.test("jmx:type=Memory"));
+        //the other endpoints only get the unscoped pattern
+        assertTrue(filters.forTarget("ORDERS", "/admin/jmx").test("jmx:type=Memory"));
+    }
+
+    @Test
+    public void excludedValuesAreSkipped() throws IOException {
+        MetricFilters filters = new MetricFilters(new String[]{"!*.details"}, this.metrics);
+        BulkBuffer document = new BulkBuffer(256);
+        MessageBuilder.writeMessageFromMetrics(new JsonReader(new StringReader("{\"mem\": 10, \"db.details\": {\"a\": [1, 2]}, \"heap\": 5}")),
+                "/metrics", new DefaultServiceInstance("SERVICE", "localhost", 8080, false), 0, document,
+                new MessageOptions(DocumentSchema.FORMATTED, null, filters.forTarget("SERVICE", "/metrics")));
+
+        JsonObject json = new JsonParser().parse(new String(document.array(), 0, document.size(), StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals(10, json.get("mem.value").getAsInt());
+        assertEquals(5, json.get("heap.value").getAsInt());
+        assertFalse(json.has("db.details.value"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.mimacom.metrics.forwarder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mimacom.metrics.elasticsearch.ElasticsearchNodes;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.spool.MetricSpool;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticsearchCachedForwarderTest {
+
+    private static final byte[] BULK_RESPONSE = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicBoolean available = new AtomicBoolean();
+    private final AtomicLong indexed = new AtomicLong();
+    private HttpServer elasticsearch;
+    private RestClient restClient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.elasticsearch = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.elasticsearch.createContext("/", exchange -> {
+            long lines = 0;
+            try (BufferedReader request = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                while (request.readLine() != null) {
+                    lines++;
+                }
+            }
+            if (!this.available.get()) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            //an action and a source line per document
+            this.indexed.addAndGet(lines / 2);
+            exchange.sendResponseHeaders(200, BULK_RESPONSE.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(BULK_RESPONSE);
+            }
+        });
+        this.elasticsearch.start();
+        this.restClient = RestClient.builder(new HttpHost("127.0.0.1", this.elasticsearch.getAddress().getPort())).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.restClient.close();
+        this.elasticsearch.stop(0);
+    }
+
+    @Test
+    public void spoolDrainsWhileNewRequestsKeepComing() throws Exception {
+        BulkManager bulkManager = new BulkManager(10, 5242880, 0, false);
+        MetricSpool spool = new MetricSpool(this.folder.newFolder("spool").getPath(), 1 << 20, 1 << 30, 86_400_000);
+        ElasticsearchCachedForwarder forwarder = new ElasticsearchCachedForwarder(ElasticsearchNodes.of(this.restClient), bulkManager,
+                new IndexManager("microsvcmetrics", "yyyy-MM-dd"), 0, 1, 1, 4, Optional.of(spool), 5, Optional.empty(),
+                new ForwarderMetrics(new MetricRegistry(), bulkManager));
+        byte[] document = "{\"mem.value\":10}".getBytes(StandardCharsets.UTF_8);
+        int sent = 0;
+        //Elasticsearch is down, the requests go to the spool
+        for (int request = 0; request < 50; request++) {
+            sent += flush(forwarder, document);
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (spool.isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertFalse(spool.isEmpty());
+
+        //back, with new requests coming faster than the replay rate
+        this.available.set(true);
+        end = System.currentTimeMillis() + 10_000;
+        while (!spool.isEmpty() && System.currentTimeMillis() < end) {
+            sent += flush(forwarder, document);
+            Thread.sleep(10);
+        }
+        assertTrue(spool.isEmpty());
+
+        end = System.currentTimeMillis() + 5000;
+        while (this.indexed.get() < sent && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(sent, this.indexed.get());
+        forwarder.close();
+    }
+
+    private static int flush(ElasticsearchCachedForwarder forwarder, byte[] document) throws Exception {
+        for (int i = 0; i < 5; i++) {
+            forwarder.cache(document, document.length, "/metrics", System.currentTimeMillis());
+        }
+        forwarder.flush();
+        return 5;
+    }
+}
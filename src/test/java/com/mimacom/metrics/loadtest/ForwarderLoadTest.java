@@ -0,0 +1,148 @@
+package com.mimacom.metrics.loadtest;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.mimacom.metrics.MetricForwarderApplicationTestConfiguration;
+import com.mimacom.metrics.poller.MetricPollerService;
+import com.mimacom.metrics.sink.SinkRing;
+import org.junit.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the forwarder against a {@link SimulatedFleet} and a {@link StubElasticsearch} for a number of polling ticks,
+ * then reports throughput, tick duration percentiles, heap usage and dropped documents. Only run with the
+ * <code>loadtest</code> profile, every setting is a system property:
+ * <pre>
+ * mvn test -Ploadtest -Dloadtest.instances=2000 -Dloadtest.latency=50 -Dloadtest.es.rejectRate=0.01
+ * </pre>
+ * Setting <code>loadtest.maxTickP99</code> (ms) fails the run when the 99th percentile of the ticks is slower.
+ */
+public class ForwarderLoadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void simulatedFleet() throws Exception {
+        int instances = (int) setting("instances", 2000);
+        int ticks = (int) setting("ticks", 10);
+        long interval = setting("interval", 5000);
+        int concurrency = (int) setting("concurrency", 64);
+
+        try (SimulatedFleet fleet = new SimulatedFleet(instances, (int) setting("services", 20), (int) setting("keys", 300),
+                setting("latency", 20), setting("failureRate", 0.0), setting("hangRate", 0.0), setting("hangTime", 10_000), (int) setting("fleetThreads", 256));
+             StubElasticsearch elasticsearch = new StubElasticsearch(setting("es.latency", 5), setting("es.rejectRate", 0.0),
+                     (int) setting("es.stallEvery", 0), setting("es.stall", 10_000));
+             ConfigurableApplicationContext context = new SpringApplicationBuilder(MetricForwarderApplicationTestConfiguration.class)
+                     .web(false)
+                     .initializers(ctx -> ctx.getBeanFactory().registerSingleton("discoveryClient", (DiscoveryClient) fleet))
+                     .run("--metricpoller.endpoints=/admin/metrics",
+                             //the ticks are driven from here
+                             "--metricpoller.schedule.mode=loadtest",
+                             "--metricpoller.poll.concurrency=" + concurrency,
+                             "--metricpoller.poll.deadline=" + setting("deadline", 4000),
+                             //a keep-alive connection per instance, as a deployment sized for the fleet would have
+                             "--metricpoller.poll.connections.max=" + (instances + concurrency),
+                             "--metricpoller.bulk.cache.documents=" + setting("bulk.documents", 1000),
+                             "--metricpoller.bulk.compression.enabled=" + System.getProperty("loadtest.compression", "false"),
+                             "--elasticsearch.host=127.0.0.1",
+                             "--elasticsearch.port=" + elasticsearch.getPort(),
+                             "--logging.level.root=WARN",
+                             "--logging.level.org.springframework.web=WARN",
+                             "--logging.level.com.mimacom.metrics=OFF")) {
+
+            MetricPollerService poller = context.getBean(MetricPollerService.class);
+            MetricRegistry registry = context.getBean(MetricRegistry.class);
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            long start = System.nanoTime();
+            for (int tick = 0; tick < ticks; tick++) {
+                long tickStart = System.nanoTime();
+                poller.pollInstances();
+                long remaining = interval - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tickStart);
+                if (remaining > 0 && tick < ticks - 1) {
+                    Thread.sleep(remaining);
+                }
+            }
+            //flushes what the last tick left in the cache
+            context.getBean(SinkRing.class).endOfTick();
+            long expected = (long) ticks * instances;
+            long dropped = drain(registry, elasticsearch, expected, setting("drainTimeout", 60_000));
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Snapshot tickDurations = registry.timer("metricforwarder.tick").getSnapshot();
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            System.gc();
+            long heapAfterGc = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            System.out.println("---- forwarder load test ----");
+            System.out.printf("instances %d, ticks %d every %d ms, %d scrapes served by the fleet%n", instances, ticks, interval, fleet.getRequests());
+            System.out.printf("indexed %d of %d documents, %.0f documents/s, %d bulk requests, %d MB received%n",
+                    elasticsearch.getIndexedDocuments(), expected, elasticsearch.getIndexedDocuments() / seconds, elasticsearch.getBulkRequests(), elasticsearch.getReceivedBytes() / MB);
+            System.out.printf("tick ms p50 %.0f, p95 %.0f, p99 %.0f, max %.0f%n", millis(tickDurations.getMedian()), millis(tickDurations.get95thPercentile()),
+                    millis(tickDurations.get99thPercentile()), millis(tickDurations.getMax()));
+            System.out.printf("scrapes failed %d, timed out %d%n", sum(registry, ".failures"), sum(registry, ".timeouts"));
+            System.out.printf("items rejected %d, documents retried %d, dropped %d%n", registry.counter("metricforwarder.bulk.items.rejected").getCount(),
+                    registry.counter("metricforwarder.bulk.documents.retried").getCount(), dropped);
+            System.out.printf("heap peak %d MB, after gc %d MB%n", peakHeap / MB, heapAfterGc / MB);
+
+            //every scrape ends up in exactly one document, either indexed or dropped
+            assertEquals(expected, elasticsearch.getIndexedDocuments() + dropped);
+            long maxTickP99 = setting("maxTickP99", 0);
+            if (maxTickP99 > 0) {
+                assertTrue("tick p99 of " + millis(tickDurations.get99thPercentile()) + " ms", millis(tickDurations.get99thPercentile()) <= maxTickP99);
+            }
+        }
+    }
+
+    /**
+     * Waits for the documents still being sent or retried.
+     *
+     * @return the dropped documents, by the bulk requests or overwritten in the ring of the sinks
+     */
+    private static long drain(MetricRegistry registry, StubElasticsearch elasticsearch, long expected, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        long dropped = dropped(registry);
+        while (elasticsearch.getIndexedDocuments() + dropped < expected && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+            dropped = dropped(registry);
+        }
+        return dropped;
+    }
+
+    private static long dropped(MetricRegistry registry) {
+        return registry.counter("metricforwarder.bulk.documents.dropped").getCount() + registry.counter("metricforwarder.sink.elasticsearch.dropped").getCount();
+    }
+
+    private static long sum(MetricRegistry registry, String suffix) {
+        return registry.getCounters((name, metric) -> name.startsWith("metricforwarder.scrape.") && name.endsWith(suffix))
+                .values().stream().mapToLong(counter -> counter.getCount()).sum();
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long setting(String name, long defaultValue) {
+        return Long.getLong("loadtest." + name, defaultValue);
+    }
+
+    private static double setting(String name, double defaultValue) {
+        String value = System.getProperty("loadtest." + name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+}
@@ -0,0 +1,145 @@
+package com.mimacom.metrics.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of synthetic instances, all of them served by one embedded HTTP server. Every instance gets its own
+ * loopback address, 127.1.x.y, so the forwarder sees as many hosts as instances, each with its own connections;
+ * this relies on the whole 127.0.0.0/8 range being routed to the loopback interface, as on Linux.
+ * <p>
+ * The actuator payload has a configurable number of keys, the responses a configurable latency with jitter, and a
+ * share of the responses fail or hang.
+ */
+class SimulatedFleet implements DiscoveryClient, AutoCloseable {
+
+    private final Map<String, List<ServiceInstance>> services;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] payloadStart;
+    private final long latencyMillis;
+    private final double failureRate;
+    private final double hangRate;
+    private final long hangMillis;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong counter = new AtomicLong();
+
+    SimulatedFleet(int instances, int services, int keys, long latencyMillis, double failureRate, double hangRate, long hangMillis, int threads) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.hangRate = hangRate;
+        this.hangMillis = hangMillis;
+        this.payloadStart = payload(keys);
+
+        //the headers and the body are written separately, without TCP_NODELAY every response waits for a delayed ack
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(0), 4096);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+
+        int port = this.server.getAddress().getPort();
+        this.services = new LinkedHashMap<>();
+        for (int i = 0; i < instances; i++) {
+            String serviceId = "LOADTEST-" + (i % services);
+            String host = "127.1." + (i / 250) + "." + (i % 250 + 1);
+            this.services.computeIfAbsent(serviceId, k -> new ArrayList<>()).add(new DefaultServiceInstance(serviceId, host, port, false));
+        }
+    }
+
+    long getRequests() {
+        return this.requests.get();
+    }
+
+    @Override
+    public String description() {
+        return "Simulated fleet";
+    }
+
+    @Override
+    public ServiceInstance getLocalServiceInstance() {
+        return null;
+    }
+
+    @Override
+    public List<ServiceInstance> getInstances(String serviceId) {
+        return this.services.getOrDefault(serviceId, Collections.emptyList());
+    }
+
+    @Override
+    public List<String> getServices() {
+        return new ArrayList<>(this.services.keySet());
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double outcome = random.nextDouble();
+            if (outcome < this.hangRate) {
+                sleep(this.hangMillis);
+            } else if (this.latencyMillis > 0) {
+                //uniform jitter around the mean
+                sleep(random.nextLong(this.latencyMillis * 2 + 1));
+            }
+            if (outcome >= this.hangRate && outcome < this.hangRate + this.failureRate) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            byte[] end = (",\"counter.loadtest.requests\":" + this.counter.incrementAndGet() + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, this.payloadStart.length + end.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(this.payloadStart);
+                body.write(end);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the payload up to its last key, the same for every response
+     */
+    private static byte[] payload(int keys) {
+        StringBuilder payload = new StringBuilder("{\"mem\":524288,\"uptime\":3600000");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < keys; i++) {
+            payload.append(",\"gauge.response.loadtest.endpoint").append(i).append("\":").append(random.nextInt(1000)).append('.').append(random.nextInt(100));
+        }
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.mimacom.metrics.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the Elasticsearch <code>_bulk</code> endpoint. It only counts the documents it receives, and can
+ * be made slow, reject a share of the items with 429 like a full write queue, or stall every n-th request. Any other
+ * request is answered with an empty 200.
+ */
+class StubElasticsearch implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double rejectRate;
+    private final int stallEvery;
+    private final long stallMillis;
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong indexedDocuments = new AtomicLong();
+    private final AtomicLong rejectedDocuments = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    StubElasticsearch(long latencyMillis, double rejectRate, int stallEvery, long stallMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.rejectRate = rejectRate;
+        this.stallEvery = stallEvery;
+        this.stallMillis = stallMillis;
+        this.executor = Executors.newFixedThreadPool(16);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    long getBulkRequests() {
+        return this.bulkRequests.get();
+    }
+
+    long getIndexedDocuments() {
+        return this.indexedDocuments.get();
+    }
+
+    long getRejectedDocuments() {
+        return this.rejectedDocuments.get();
+    }
+
+    long getReceivedBytes() {
+        return this.receivedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().endsWith("_bulk")) {
+                respond(exchange, "{}");
+                return;
+            }
+            long request = this.bulkRequests.incrementAndGet();
+            boolean compressed = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            int lines = countLines(compressed ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody());
+            if (this.stallEvery > 0 && request % this.stallEvery == 0) {
+                sleep(this.stallMillis);
+            } else if (this.latencyMillis > 0) {
+                sleep(this.latencyMillis);
+            }
+
+            //an action and a document line per item
+            StringBuilder items = new StringBuilder();
+            boolean errors = false;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int item = 0; item < lines / 2; item++) {
+                if (item > 0) {
+                    items.append(',');
+                }
+                if (random.nextDouble() < this.rejectRate) {
+                    errors = true;
+                    this.rejectedDocuments.incrementAndGet();
+                    items.append("{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected by the stub\"}}}");
+                } else {
+                    this.indexedDocuments.incrementAndGet();
+                    items.append("{\"index\":{\"status\":201}}");
+                }
+            }
+            respond(exchange, "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private int countLines(InputStream body) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        int lines = 0;
+        for (int read = body.read(chunk); read != -1; read = body.read(chunk)) {
+            this.receivedBytes.addAndGet(read);
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
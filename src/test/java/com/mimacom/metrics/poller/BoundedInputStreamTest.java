@@ -0,0 +1,45 @@
+package com.mimacom.metrics.poller;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BoundedInputStreamTest {
+
+    @Test
+    public void countBytesRead() throws IOException {
+        BoundedInputStream stream = new BoundedInputStream(new ByteArrayInputStream(new byte[100]), 100, System.nanoTime() + 1_000_000_000L);
+        assertEquals(100, drain(stream));
+        assertEquals(100, stream.getCount());
+    }
+
+    @Test
+    public void failBeyondMaximumSize() {
+        try {
+            drain(new BoundedInputStream(new ByteArrayInputStream(new byte[101]), 100, System.nanoTime() + 1_000_000_000L));
+            fail("the response is too large");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("100 bytes"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failAfterDeadline() throws IOException {
+        drain(new BoundedInputStream(new ByteArrayInputStream(new byte[10]), 100, System.nanoTime() - 1));
+    }
+
+    private static int drain(InputStream stream) throws IOException {
+        byte[] buffer = new byte[16];
+        int total = 0;
+        for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+            total += read;
+        }
+        return total;
+    }
+}
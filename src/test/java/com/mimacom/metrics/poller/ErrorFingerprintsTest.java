@@ -0,0 +1,54 @@
+package com.mimacom.metrics.poller;
+
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ErrorFingerprintsTest {
+
+    private static final ServiceInstance INSTANCE = new DefaultServiceInstance("service", "localhost", 8080, false);
+
+    private final ErrorFingerprints errors = new ErrorFingerprints(60_000, 5);
+
+    @Test
+    public void traceSentOncePerWindow() {
+        IOException failure = new IOException("Connection refused");
+        HashMap<String, Object> first = this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", failure, 0);
+        assertTrue(first.containsKey("exceptionStacktrace"));
+        assertEquals(1L, first.get("count"));
+
+        HashMap<String, Object> repeated = this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", failure, 5000);
+        assertFalse(repeated.containsKey("exceptionStacktrace"));
+        assertEquals(first.get("fingerprint"), repeated.get("fingerprint"));
+        assertEquals(0L, repeated.get("firstSeen"));
+        assertEquals(5000L, repeated.get("lastSeen"));
+        assertEquals(2L, repeated.get("count"));
+
+        HashMap<String, Object> nextWindow = this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", failure, 60_000);
+        assertTrue(nextWindow.containsKey("exceptionStacktrace"));
+        assertEquals(3L, nextWindow.get("count"));
+    }
+
+    @Test
+    public void quietFingerprintsAreForgotten() {
+        IOException failure = new IOException("Connection refused");
+        this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", failure, 0);
+        HashMap<String, Object> other = this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", new IOException("Connection reset"), 0);
+        assertEquals(2, this.errors.getFingerprints());
+
+        //neither occurred for a whole window
+        HashMap<String, Object> again = this.errors.describe(INSTANCE, "/metrics", "Instance not reachable", failure, 70_000);
+        assertEquals(1, this.errors.getFingerprints());
+        assertEquals(70_000L, again.get("firstSeen"));
+        assertEquals(1L, again.get("count"));
+        assertNotEquals(again.get("fingerprint"), other.get("fingerprint"));
+    }
+}
@@ -0,0 +1,125 @@
+package com.mimacom.metrics.poller;
+
+import com.mimacom.metrics.discovery.ServiceTopology;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TargetSchedulerTest {
+
+    private final MetricPollerService poller = mock(MetricPollerService.class);
+    private final DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+    private final ForwarderMetrics metrics = mock(ForwarderMetrics.class);
+    private final List<Long> submissions = new ArrayList<>();
+    private final List<Boolean> forwardedErrors = new ArrayList<>();
+    private final List<Long> timeouts = new ArrayList<>();
+    private TargetScheduler scheduler;
+    private long now;
+
+    @Before
+    public void setUp() {
+        when(this.poller.isOwned(any(ServiceInstance.class))).thenReturn(true);
+        when(this.poller.getMetricsEndpoints()).thenReturn(new String[]{"/metrics"});
+        when(this.discoveryClient.getServices()).thenReturn(Collections.singletonList("SERVICE"));
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, mock(ApplicationEventPublisher.class), 60_000);
+        this.scheduler = new TargetScheduler(this.poller, topology, this.metrics, 5000, new String[0], 4000, 3, 40_000, 100, 1000);
+    }
+
+    @Test
+    public void targetsScrapedOncePerIntervalAtTheirPhase() {
+        List<ServiceInstance> instances = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            instances.add(new DefaultServiceInstance("SERVICE", "host" + i, 8080, false));
+        }
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(instances);
+        scrapes(Outcome.SUCCESS);
+
+        runUntil(15_000);
+        assertEquals(60, this.submissions.size());
+        Set<Long> phases = new TreeSet<>();
+        this.submissions.forEach(time -> phases.add(time % 5000));
+        assertTrue("the scrapes are spread over the interval " + phases, phases.size() > 10);
+    }
+
+    @Test
+    public void runningScrapeIsNeverOverlapped() {
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(new DefaultServiceInstance("SERVICE", "host", 8080, false)));
+        scrapes(Outcome.HANG);
+
+        runUntil(10_000);
+        //timed out at the deadline, nothing started meanwhile
+        assertEquals(2, this.submissions.size());
+        assertEquals(Collections.singletonList(this.submissions.get(0) + 4000), this.timeouts);
+        assertTrue(this.submissions.get(1) > this.timeouts.get(0));
+        assertEquals(Collections.singletonList(true), this.forwardedErrors);
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() {
+        when(this.discoveryClient.getInstances("SERVICE")).thenReturn(Collections.singletonList(new DefaultServiceInstance("SERVICE", "host", 8080, false)));
+        scrapes(Outcome.FAILURE);
+
+        runUntil(60_000);
+        long phase = this.submissions.get(0);
+        //the third failure opens the circuit, the backoff doubles from there on
+        List<Long> expected = new ArrayList<>();
+        for (long offset : new long[]{0, 5000, 10_000, 20_000, 40_000}) {
+            expected.add(phase + offset);
+        }
+        assertEquals(expected, this.submissions);
+        assertEquals(Arrays.asList(true, true, true, false, false), this.forwardedErrors);
+        verify(this.metrics, times(1)).circuitOpened("SERVICE", "/metrics");
+    }
+
+    private void runUntil(long end) {
+        for (; this.now < end; this.now += 100) {
+            this.scheduler.run(this.now);
+        }
+    }
+
+    private void scrapes(Outcome outcome) {
+        when(this.poller.submit(any(ServiceInstance.class), anyString(), anyLong(), any(MetricPollerService.ScrapeListener.class))).thenAnswer(invocation -> {
+            this.submissions.add(this.now);
+            MetricPollerService.ScrapeListener listener = (MetricPollerService.ScrapeListener) invocation.getArguments()[3];
+            switch (outcome) {
+                case SUCCESS:
+                    listener.onSuccess();
+                    break;
+                case FAILURE:
+                    this.forwardedErrors.add(listener.onFailure());
+                    break;
+                default:
+                    break;
+            }
+            return (MetricPollerService.ScrapeHandle) () -> {
+                this.timeouts.add(this.now);
+                this.forwardedErrors.add(listener.onFailure());
+            };
+        });
+    }
+
+    private enum Outcome {
+        SUCCESS, FAILURE, HANG
+    }
+}
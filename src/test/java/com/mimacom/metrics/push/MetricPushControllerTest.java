@@ -0,0 +1,135 @@
+package com.mimacom.metrics.push;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.discovery.ServiceTopology;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.poller.MetricPollerService;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.SinkRing;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class MetricPushControllerTest {
+
+    private final MetricPollerService poller = mock(MetricPollerService.class);
+    private final SinkRing sinks = mock(SinkRing.class);
+    private final BulkManager bulkManager = mock(BulkManager.class);
+    private final DiscoveryClient discoveryClient = mock(DiscoveryClient.class);
+    private final List<JsonObject> cached = new ArrayList<>();
+    private MockMvc mvc;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.sinks.acquire()).thenAnswer(invocation -> new BulkBuffer(1024));
+        when(this.poller.writeDocument(any(JsonReader.class), any(ServiceInstance.class), anyString(), anyLong(), any(BulkBuffer.class))).thenAnswer(invocation -> {
+            Object[] arguments = invocation.getArguments();
+            BulkBuffer document = (BulkBuffer) arguments[4];
+            MessageBuilder.writeMessageFromMetrics((JsonReader) arguments[0], (String) arguments[2], (ServiceInstance) arguments[1], (Long) arguments[3], document, MessageOptions.DEFAULTS);
+            return true;
+        });
+        doAnswer(invocation -> {
+            MetricDocument document = (MetricDocument) invocation.getArguments()[0];
+            this.cached.add(new JsonParser().parse(new String(document.getSource(), 0, document.getLength(), StandardCharsets.UTF_8)).getAsJsonObject());
+            return null;
+        }).when(this.sinks).publish(any(MetricDocument.class));
+
+        when(this.discoveryClient.getServices()).thenReturn(Collections.singletonList("orders"));
+        when(this.discoveryClient.getInstances("orders")).thenReturn(Collections.emptyList());
+        ServiceTopology topology = new ServiceTopology(this.discoveryClient, mock(ApplicationEventPublisher.class), 60_000);
+        MetricPushController controller = new MetricPushController(this.poller, this.sinks, this.bulkManager, mock(ForwarderMetrics.class),
+                topology, new String[0], new String[]{"/admin/metrics"}, 2, 60_000, 4, 1024, 100, 1024, 30_000, 5);
+        this.mvc = MockMvcBuilders.standaloneSetup(controller).addPlaceholderValue("metricpoller.push.path", "/push").build();
+    }
+
+    @Test
+    public void batchOfSnapshots() throws Exception {
+        this.mvc.perform(post("/push/ORDERS").param("host", "orders-1").param("port", "8080").param("endpoint", "/admin/metrics")
+                .content("{\"mem\": 10}\n{\"mem\": 20, \"status\": \"UP\"}\n"))
+                .andExpect(status().isAccepted());
+
+        assertEquals(2, this.cached.size());
+        assertEquals(10, this.cached.get(0).get("mem.value").getAsInt());
+        assertEquals("UP", this.cached.get(1).get("status.value").getAsString());
+        assertEquals("ORDERS", this.cached.get(1).get("serviceId.value").getAsString());
+        assertEquals("orders-1", this.cached.get(1).get("host.value").getAsString());
+        assertEquals("/admin/metrics", this.cached.get(1).get("endpoint.value").getAsString());
+    }
+
+    @Test
+    public void invalidSnapshotIsRefused() throws Exception {
+        this.mvc.perform(post("/push/ORDERS").content("{\"mem\": 10}\n[1, 2]"))
+                .andExpect(status().isBadRequest());
+        //the valid snapshot before is kept
+        assertEquals(1, this.cached.size());
+    }
+
+    @Test
+    public void backpressureWhileTheCacheIsFull() throws Exception {
+        when(this.bulkManager.getCachedBytes()).thenReturn(2048L);
+        this.mvc.perform(post("/push/ORDERS").content("{\"mem\": 10}"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "5"));
+        assertTrue(this.cached.isEmpty());
+    }
+
+    @Test
+    public void backpressureWhileASinkLags() throws Exception {
+        when(this.sinks.getLag()).thenReturn(100L);
+        this.mvc.perform(post("/push/ORDERS").content("{\"mem\": 10}"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "5"));
+        assertTrue(this.cached.isEmpty());
+    }
+
+    @Test
+    public void onlyKnownServicesPushToTheScrapedEndpoints() throws Exception {
+        this.mvc.perform(post("/push/PAYMENTS").content("{\"mem\": 10}"))
+                .andExpect(status().isForbidden());
+        this.mvc.perform(post("/push/ORDERS").param("endpoint", "/anything").content("{\"mem\": 10}"))
+                .andExpect(status().isBadRequest());
+        assertTrue(this.cached.isEmpty());
+    }
+
+    @Test
+    public void boundedNumberOfTargets() throws Exception {
+        this.mvc.perform(post("/push/ORDERS").param("host", "orders-1").content("{\"mem\": 10}"))
+                .andExpect(status().isAccepted());
+        this.mvc.perform(post("/push/ORDERS").param("host", "orders-2").content("{\"mem\": 10}"))
+                .andExpect(status().isAccepted());
+        this.mvc.perform(post("/push/ORDERS").param("host", "orders-3").content("{\"mem\": 10}"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "5"));
+        //the targets already pushing keep pushing
+        this.mvc.perform(post("/push/ORDERS").param("host", "orders-1").content("{\"mem\": 20}"))
+                .andExpect(status().isAccepted());
+        assertEquals(3, this.cached.size());
+    }
+}
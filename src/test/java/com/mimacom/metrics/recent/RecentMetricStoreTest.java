@@ -0,0 +1,145 @@
+package com.mimacom.metrics.recent;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.elasticsearch.util.DocumentSchema;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import com.mimacom.metrics.sink.MetricDocument;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.HashMap;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class RecentMetricStoreTest {
+
+    private static final ServiceInstance ORDERS_1 = new DefaultServiceInstance("ORDERS", "orders-1", 8080, false);
+    private static final ServiceInstance ORDERS_2 = new DefaultServiceInstance("ORDERS", "orders-2", 8080, false);
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    @Test
+    public void latestPointsOfEveryInstance() throws Exception {
+        RecentMetricStore store = new RecentMetricStore(metrics(), 300_000, 4, 10, 10);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++) {
+            store.write(document(ORDERS_1, now - 6000 + i * 1000, 100 + i, "UP"));
+        }
+        store.write(document(ORDERS_2, now, 50, "UP"));
+        store.write(document(ORDERS_2, "/push", now, 60, "UP"));
+
+        List<RecentSeries> series = store.query("ORDERS", "heap.used", "orders-1:8080", null, 0);
+        assertEquals(1, series.size());
+        //only the last 4 points are kept
+        assertArrayEquals(new double[]{102, 103, 104, 105}, series.get(0).getValues(), 0);
+        assertArrayEquals(new long[]{now - 4000, now - 3000, now - 2000, now - 1000}, series.get(0).getTimestamps());
+        assertEquals(2, store.query("ORDERS", "heap.used", "orders-1:8080", null, now - 2000).get(0).getValues().length);
+        assertEquals(3, store.query("ORDERS", "heap.used", null, null, 0).size());
+        //the series of every endpoint are kept apart
+        series = store.query("ORDERS", "heap.used", "orders-2:8080", "/push", 0);
+        assertEquals(1, series.size());
+        assertEquals("/push", series.get(0).getEndpoint());
+        assertArrayEquals(new double[]{60}, series.get(0).getValues(), 0);
+        //strings and metadata are no series
+        assertEquals(0, store.query("ORDERS", "status", null, null, 0).size());
+        assertEquals(0, store.query("ORDERS", "port", null, null, 0).size());
+
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(new RecentMetricController(store)).addPlaceholderValue("metricpoller.recent.path", "/recent").build();
+        mvc.perform(get("/recent/ORDERS").param("metric", "heap.used").param("instance", "orders-1:8080").param("endpoint", "/admin/metrics").param("aggregate", "true"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].count").value(4))
+                .andExpect(jsonPath("$[0].min").value(102.0))
+                .andExpect(jsonPath("$[0].max").value(105.0))
+                .andExpect(jsonPath("$[0].avg").value(103.5))
+                .andExpect(jsonPath("$[0].last").value(105.0));
+    }
+
+    @Test
+    public void slotsOfInstancesGoneAreReused() throws Exception {
+        RecentMetricStore store = new RecentMetricStore(metrics(), 1, 4, 1, 10);
+        long now = System.currentTimeMillis();
+        store.write(document(ORDERS_1, now - 1000, 1, "UP"));
+        //the slab is full
+        store.write(document(ORDERS_2, now - 1000, 2, "UP"));
+        assertEquals(1, this.registry.counter("metricforwarder.recent.points.rejected").getCount());
+
+        Thread.sleep(5);
+        store.flush();
+        assertEquals(0, store.query("ORDERS", "heap.used", null, null, 0).size());
+        store.write(document(ORDERS_2, now, 3, "UP"));
+        List<RecentSeries> series = store.query("ORDERS", "heap.used", null, null, 0);
+        assertEquals(1, series.size());
+        assertEquals("orders-2:8080", series.get(0).getInstance());
+        assertArrayEquals(new double[]{3}, series.get(0).getValues(), 0);
+    }
+
+    @Test
+    public void slotsOfMetricsGoneAreReused() throws Exception {
+        RecentMetricStore store = new RecentMetricStore(metrics(), 50, 4, 1, 10);
+        store.write(document(ORDERS_1, System.currentTimeMillis() - 1000, "heap.used", 1));
+        Thread.sleep(60);
+        //the instance goes on with another metric, for which the slab is full
+        long now = System.currentTimeMillis();
+        store.write(document(ORDERS_1, now, "threads", 20));
+        assertEquals(1, this.registry.counter("metricforwarder.recent.points.rejected").getCount());
+
+        store.flush();
+        assertEquals(0, store.query("ORDERS", "heap.used", null, null, 0).size());
+        store.write(document(ORDERS_1, now + 1, "threads", 21));
+        List<RecentSeries> series = store.query("ORDERS", "threads", "orders-1:8080", null, 0);
+        assertEquals(1, series.size());
+        assertArrayEquals(new double[]{21}, series.get(0).getValues(), 0);
+    }
+
+    @Test
+    public void instancesBeyondTheLimitAreLeftOut() throws Exception {
+        RecentMetricStore store = new RecentMetricStore(metrics(), 1, 4, 10, 1);
+        long now = System.currentTimeMillis();
+        store.write(document(ORDERS_1, now - 1000, 1, "UP"));
+        store.write(document(ORDERS_2, now - 1000, 2, "UP"));
+        assertEquals(1, this.registry.counter("metricforwarder.recent.points.rejected").getCount());
+        assertEquals(1, store.query("ORDERS", "heap.used", null, null, 0).size());
+
+        //the instances forgotten make room for others
+        Thread.sleep(5);
+        store.flush();
+        store.write(document(ORDERS_2, now, 3, "UP"));
+        List<RecentSeries> series = store.query("ORDERS", "heap.used", null, null, 0);
+        assertEquals(1, series.size());
+        assertEquals("orders-2:8080", series.get(0).getInstance());
+    }
+
+    private ForwarderMetrics metrics() {
+        return new ForwarderMetrics(this.registry, new BulkManager(10, 5242880, 0, false));
+    }
+
+    private static MetricDocument document(ServiceInstance instance, long timestamp, long heap, String status) {
+        return document(instance, "/admin/metrics", timestamp, heap, status);
+    }
+
+    private static MetricDocument document(ServiceInstance instance, long timestamp, String metric, long value) {
+        HashMap<String, Object> metrics = new HashMap<>();
+        metrics.put(metric, value);
+        return MetricDocument.of(MessageBuilder.buildMessageFromMetrics(metrics, "/admin/metrics", instance, timestamp, MessageOptions.of(DocumentSchema.TYPED)), "/admin/metrics", timestamp);
+    }
+
+    private static MetricDocument document(ServiceInstance instance, String endpoint, long timestamp, long heap, String status) {
+        HashMap<String, Object> metrics = new HashMap<>();
+        metrics.put("heap.used", heap);
+        metrics.put("status", status);
+        return MetricDocument.of(MessageBuilder.buildMessageFromMetrics(metrics, endpoint, instance, timestamp, MessageOptions.of(DocumentSchema.TYPED)), endpoint, timestamp);
+    }
+}
@@ -0,0 +1,130 @@
+package com.mimacom.metrics.rollup;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.DocumentSchema;
+import com.mimacom.metrics.elasticsearch.util.IndexManager;
+import com.mimacom.metrics.elasticsearch.util.MessageBuilder;
+import com.mimacom.metrics.elasticsearch.util.MessageOptions;
+import com.mimacom.metrics.elasticsearch.util.MetricTransform;
+import com.mimacom.metrics.sink.MetricDocument;
+import com.mimacom.metrics.sink.SinkRing;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.client.DefaultServiceInstance;
+import org.springframework.cloud.client.ServiceInstance;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupAggregatorTest {
+
+    private static final ServiceInstance INSTANCE = new DefaultServiceInstance("service", "localhost", 8080, false);
+
+    private final List<JsonObject> rollups = new ArrayList<>();
+    private RollupAggregator aggregator;
+
+    @Before
+    public void setUp() throws IOException {
+        SinkRing sinks = mock(SinkRing.class);
+        when(sinks.acquire()).thenAnswer(invocation -> new BulkBuffer(1024));
+        doAnswer(invocation -> {
+            MetricDocument document = (MetricDocument) invocation.getArguments()[0];
+            this.rollups.add(new JsonParser().parse(new String(document.getSource(), 0, document.getLength(), StandardCharsets.UTF_8)).getAsJsonObject());
+            return null;
+        }).when(sinks).publish(any(MetricDocument.class));
+        this.aggregator = new RollupAggregator(sinks, new IndexManager("metrics", "yyyy-MM-dd"), 60_000, new String[]{"heap.used"}, 180_000);
+    }
+
+    @Test
+    public void aggregatePerWindow() throws IOException {
+        JsonObject raw = scrape(0, "{\"mem\": 10, \"heap.used\": 5, \"status\": \"UP\"}");
+        assertFalse(raw.has("mem.value"));
+        assertEquals(5, raw.get("heap.used.value").getAsInt());
+        assertEquals("UP", raw.get("status.value").getAsString());
+        scrape(20_000, "{\"mem\": 30, \"heap.used\": 5, \"status\": \"UP\"}");
+        scrape(40_000, "{\"mem\": 20, \"heap.used\": 5, \"status\": \"UP\"}");
+        assertTrue(this.rollups.isEmpty());
+
+        //the next window closes the previous one
+        scrape(60_000, "{\"mem\": 40}");
+        assertEquals(1, this.rollups.size());
+        JsonObject rollup = this.rollups.get(0);
+        assertEquals(10, rollup.get("mem.min.value").getAsDouble(), 0.0);
+        assertEquals(30, rollup.get("mem.max.value").getAsDouble(), 0.0);
+        assertEquals(20, rollup.get("mem.avg.value").getAsDouble(), 0.0);
+        assertEquals(20, rollup.get("mem.last.value").getAsDouble(), 0.0);
+        assertEquals(3, rollup.get("mem.count.value").getAsInt());
+        assertEquals(60_000, rollup.get("rollup.window.value").getAsLong());
+        assertEquals("service", rollup.get("serviceId.value").getAsString());
+    }
+
+    @Test
+    public void closeWindowsOfGoneInstances() throws IOException {
+        scrape(0, "{\"mem\": 10}");
+        this.aggregator.closeWindows(59_999);
+        assertTrue(this.rollups.isEmpty());
+
+        this.aggregator.closeWindows(60_000);
+        assertEquals(1, this.rollups.size());
+        assertEquals(1, this.aggregator.getTrackedTargets());
+
+        //no scrape during a whole window, the window is kept for a target scraped less often
+        this.aggregator.closeWindows(120_000);
+        assertEquals(1, this.rollups.size());
+        assertEquals(1, this.aggregator.getTrackedTargets());
+
+        //no scrape during the idle time, the instance is gone
+        this.aggregator.closeWindows(180_001);
+        assertEquals(1, this.rollups.size());
+        assertEquals(0, this.aggregator.getTrackedTargets());
+    }
+
+    @Test
+    public void scrapesNotForwardedAreLeftOut() throws IOException {
+        scrape(0, "{\"mem\": 10}");
+        //timed out after reading its values
+        scrape(20_000, "{\"mem\": 1000}", false);
+        //failed halfway through
+        MetricTransform transform = this.aggregator.begin(INSTANCE, "/metrics", 40_000);
+        transform.accept("mem", "2000");
+        transform.release(true);
+
+        this.aggregator.closeWindows(60_000);
+        assertEquals(1, this.rollups.size());
+        assertEquals(10, this.rollups.get(0).get("mem.max.value").getAsDouble(), 0.0);
+        assertEquals(1, this.rollups.get(0).get("mem.count.value").getAsInt());
+    }
+
+    private JsonObject scrape(long timestamp, String metrics) throws IOException {
+        return scrape(timestamp, metrics, true);
+    }
+
+    private JsonObject scrape(long timestamp, String metrics, boolean forwarded) throws IOException {
+        BulkBuffer document = new BulkBuffer(256);
+        MetricTransform transform = this.aggregator.begin(INSTANCE, "/metrics", timestamp);
+        try {
+            MessageBuilder.writeMessageFromMetrics(new JsonReader(new StringReader(metrics)), "/metrics", INSTANCE, timestamp, document, new MessageOptions(DocumentSchema.FORMATTED, transform, null));
+        } finally {
+            transform.release(forwarded);
+        }
+        return parse(document);
+    }
+
+    private static JsonObject parse(BulkBuffer document) {
+        return new JsonParser().parse(new String(document.array(), 0, document.size(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+}
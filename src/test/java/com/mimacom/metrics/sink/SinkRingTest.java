@@ -0,0 +1,215 @@
+package com.mimacom.metrics.sink;
+
+import com.codahale.metrics.MetricRegistry;
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import com.mimacom.metrics.elasticsearch.util.BulkManager;
+import com.mimacom.metrics.instrumentation.ForwarderMetrics;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SinkRingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void slowSinkHoldsUpNeitherThePublisherNorTheOtherSinks() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CountDownLatch slowSinkRelease = new CountDownLatch(1);
+        RecordingSink fast = new RecordingSink("fast", "skip", null);
+        RecordingSink slow = new RecordingSink("slow", "skip", slowSinkRelease);
+        SinkRing ring = new SinkRing(Optional.of(Arrays.asList(fast, slow)), metrics(registry), 16);
+
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            for (int i = round * 10; i < round * 10 + 10; i++) {
+                ring.publish(MetricDocument.of("{\"i\":" + i + "}", "/metrics", i));
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            //the fast sink keeps up with a ring of 16 documents
+            long end = System.currentTimeMillis() + 5000;
+            while (fast.documents.size() < round * 10 + 10 && System.currentTimeMillis() < end) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(100, fast.documents.size());
+
+        slowSinkRelease.countDown();
+        ring.close();
+        //whatever the slow sink did not get before the ring went round is counted as lost
+        long dropped = registry.counter("metricforwarder.sink.slow.dropped").getCount();
+        assertTrue(dropped > 0);
+        assertEquals(100, slow.documents.size() + dropped);
+        assertEquals("{\"i\":99}", slow.documents.get(slow.documents.size() - 1));
+        assertEquals(0, registry.counter("metricforwarder.sink.fast.dropped").getCount());
+    }
+
+    @Test
+    public void blockingSinkHoldsThePublishersUp() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        CountDownLatch blockingSinkRelease = new CountDownLatch(1);
+        RecordingSink blocking = new RecordingSink("blocking", "block", blockingSinkRelease);
+        SinkRing ring = new SinkRing(Optional.of(Collections.singletonList(blocking)), metrics(registry), 16);
+        AtomicInteger published = new AtomicInteger();
+        Thread publisher = new Thread(() -> {
+            for (int i = 0; i < 40; i++) {
+                ring.publish(MetricDocument.of("{\"i\":" + i + "}", "/metrics", i));
+                published.incrementAndGet();
+            }
+        });
+        publisher.start();
+
+        Thread.sleep(200);
+        //the sink is stuck on the first document, the others fill the ring
+        assertEquals(17, published.get());
+
+        blockingSinkRelease.countDown();
+        publisher.join(5000);
+        long end = System.currentTimeMillis() + 5000;
+        while (blocking.documents.size() < 40 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        ring.close();
+        assertEquals(40, blocking.documents.size());
+        assertEquals("{\"i\":39}", blocking.documents.get(39));
+        assertEquals(0, registry.counter("metricforwarder.sink.blocking.dropped").getCount());
+        assertTrue(registry.timer("metricforwarder.sink.blocking.blocked").getCount() > 0);
+    }
+
+    @Test
+    public void documentsWrittenByEverySinkAreCleared() throws Exception {
+        CountDownLatch slowSinkRelease = new CountDownLatch(1);
+        RecordingSink fast = new RecordingSink("fast", "skip", null);
+        RecordingSink slow = new RecordingSink("slow", "skip", slowSinkRelease);
+        SinkRing ring = new SinkRing(Optional.of(Arrays.asList(fast, slow)), metrics(new MetricRegistry()), 16);
+        for (int i = 0; i < 10; i++) {
+            ring.publish(MetricDocument.of("{\"i\":" + i + "}", "/metrics", i));
+        }
+        //the slow sink is stuck writing the first document
+        long end = System.currentTimeMillis() + 5000;
+        while ((fast.documents.size() < 10 || ring.getLag() > 9) && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(9, ring.getLag());
+        //the one being written and the nine unread
+        assertEquals(10, ring.getRetained());
+
+        slowSinkRelease.countDown();
+        end = System.currentTimeMillis() + 5000;
+        while (slow.documents.size() < 10 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        ring.close();
+        assertEquals(0, ring.getLag());
+        assertEquals(0, ring.getRetained());
+    }
+
+    @Test
+    public void buffersGoBackToThePoolOnceEverySinkWroteThem() throws Exception {
+        CountDownLatch slowSinkRelease = new CountDownLatch(1);
+        RecordingSink fast = new RecordingSink("fast", "skip", null);
+        RecordingSink slow = new RecordingSink("slow", "skip", slowSinkRelease);
+        SinkRing ring = new SinkRing(Optional.of(Arrays.asList(fast, slow)), metrics(new MetricRegistry()), 16);
+        BulkBuffer buffer = ring.acquire();
+        buffer.writeUtf8("{\"i\":0}");
+        ring.publish(MetricDocument.of(buffer, "/metrics", 0));
+        long end = System.currentTimeMillis() + 5000;
+        while (fast.documents.isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        //the slow sink is still writing it
+        assertNotSame(buffer, ring.acquire());
+
+        slowSinkRelease.countDown();
+        end = System.currentTimeMillis() + 5000;
+        while (slow.documents.isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        ring.close();
+        assertEquals("{\"i\":0}", slow.documents.get(0));
+        BulkBuffer pooled = ring.acquire();
+        assertSame(buffer, pooled);
+        assertTrue(pooled.isEmpty());
+    }
+
+    @Test
+    public void fileSinkRollsOverAndKeepsTheNewestFiles() throws Exception {
+        File directory = this.folder.newFolder("archive");
+        FileSink sink = new FileSink(directory.getPath(), 30, 2, 0, 0, "skip");
+        for (int i = 0; i < 10; i++) {
+            sink.write(MetricDocument.of("{\"document\":" + i + "}", "/metrics", i));
+        }
+        sink.close();
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+        List<String> lines = new ArrayList<>();
+        for (File file : files) {
+            lines.addAll(Files.readAllLines(file.toPath()));
+        }
+        assertEquals(Arrays.asList("{\"document\":6}", "{\"document\":7}", "{\"document\":8}", "{\"document\":9}"), lines);
+    }
+
+    private static ForwarderMetrics metrics(MetricRegistry registry) {
+        return new ForwarderMetrics(registry, new BulkManager(10, 5242880, 0, false));
+    }
+
+    private static class RecordingSink implements MetricSink {
+        private final String name;
+        private final SinkSettings settings;
+        private final CountDownLatch release;
+        private final List<String> documents = new CopyOnWriteArrayList<>();
+
+        RecordingSink(String name, String overflow, CountDownLatch release) {
+            this.name = name;
+            this.settings = new SinkSettings(0, 0, overflow);
+            this.release = release;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public SinkSettings getSettings() {
+            return this.settings;
+        }
+
+        @Override
+        public void write(MetricDocument document) {
+            if (this.release != null) {
+                try {
+                    this.release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.documents.add(new String(document.getSource(), 0, document.getLength(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
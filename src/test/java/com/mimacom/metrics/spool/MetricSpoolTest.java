@@ -0,0 +1,127 @@
+package com.mimacom.metrics.spool;
+
+import com.mimacom.metrics.elasticsearch.util.BulkBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricSpoolTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayInOrderAcrossSegments() throws Exception {
+        MetricSpool spool = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertTrue(spool.isEmpty());
+
+        //each request takes a third of a segment, so they span several segments
+        for (int i = 0; i < 10; i++) {
+            spool.append(bulkRequest(i, 300));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            BulkBuffer read = new BulkBuffer(16);
+            MetricSpool.Position position = spool.read(read);
+            assertNotNull(position);
+            assertEquals(bulkRequestContent(i, 300), new String(read.array(), 0, read.size(), StandardCharsets.UTF_8));
+            assertEquals(2, read.getDocuments());
+            spool.acknowledge(position);
+        }
+        assertTrue(spool.isEmpty());
+        assertNull(spool.read(new BulkBuffer(16)));
+    }
+
+    @Test
+    public void recoverUnacknowledgedRequests() throws Exception {
+        MetricSpool spool = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            spool.append(bulkRequest(i, 300));
+        }
+        spool.acknowledge(spool.read(new BulkBuffer(16)));
+        spool.close();
+
+        //a new spool on the same directory continues with the first unacknowledged request
+        MetricSpool recovered = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 1; i < 5; i++) {
+            BulkBuffer read = new BulkBuffer(16);
+            MetricSpool.Position position = recovered.read(read);
+            assertNotNull(position);
+            assertEquals(bulkRequestContent(i, 300), new String(read.array(), 0, read.size(), StandardCharsets.UTF_8));
+            recovered.acknowledge(position);
+        }
+        assertTrue(recovered.isEmpty());
+    }
+
+    @Test
+    public void dropOldestSegmentsBeyondSizeLimit() throws Exception {
+        MetricSpool spool = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, 2 * SEGMENT_SIZE, Long.MAX_VALUE);
+        for (int i = 0; i < 12; i++) {
+            spool.append(bulkRequest(i, 300));
+        }
+        assertTrue(spool.getBytes() <= 2 * SEGMENT_SIZE);
+
+        //three requests fit in one segment, so the last two segments hold the requests 6 to 11
+        BulkBuffer read = new BulkBuffer(16);
+        assertNotNull(spool.read(read));
+        assertEquals(bulkRequestContent(6, 300), new String(read.array(), 0, read.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void appendDroppingTheSegmentBeingReplayed() throws Exception {
+        MetricSpool spool = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, 2 * SEGMENT_SIZE, Long.MAX_VALUE);
+        for (int i = 0; i < 6; i++) {
+            spool.append(bulkRequest(i, 300));
+        }
+        //the request 0 is being replayed while the size limit drops its segment
+        MetricSpool.Position replayed = spool.read(new BulkBuffer(16));
+        for (int i = 6; i < 9; i++) {
+            spool.append(bulkRequest(i, 300));
+        }
+        spool.acknowledge(replayed);
+
+        //the head of the new oldest segment was never sent, it is not acknowledged in place of the dropped one
+        BulkBuffer read = new BulkBuffer(16);
+        assertNotNull(spool.read(read));
+        assertEquals(bulkRequestContent(3, 300), new String(read.array(), 0, read.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void oversizedRequestGetsItsOwnSegment() throws Exception {
+        MetricSpool spool = new MetricSpool(folder.getRoot().getPath(), SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        spool.append(bulkRequest(0, 3000));
+
+        BulkBuffer read = new BulkBuffer(16);
+        assertNotNull(spool.read(read));
+        assertEquals(bulkRequestContent(0, 3000), new String(read.array(), 0, read.size(), StandardCharsets.UTF_8));
+    }
+
+    private static BulkBuffer bulkRequest(int id, int size) {
+        String content = bulkRequestContent(id, size);
+        BulkBuffer buffer = new BulkBuffer(16);
+        int split = content.indexOf('\n', content.indexOf('\n') + 1) + 1;
+        buffer.startDocument();
+        buffer.writeUtf8(content.substring(0, split));
+        buffer.startDocument();
+        buffer.writeUtf8(content.substring(split));
+        return buffer;
+    }
+
+    private static String bulkRequestContent(int id, int size) {
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < size / 2 - 40) {
+            padding.append('x');
+        }
+        String document = "{\"id\":" + id + ",\"p\":\"" + padding + "\"}\n";
+        return "{\"index\":{}}\n" + document + "{\"index\":{}}\n" + document;
+    }
+}